@@ -0,0 +1,174 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import plgrid.GridJobInfo;
+import plgrid.event.EventFinished;
+
+/**
+ * Second stage of finished job handling. DRMAAJobFinishListener only reaps
+ * completions from DRMAA and hands them over through a bounded queue. This
+ * thread drains the queue in batches, removes the jobs from the registry and
+ * fires EventFinished, so a burst of completions never slows down reaping.
+ *
+ * When the queue is full the listener blocks, which leaves the remaining
+ * completions in DRMAA until the dispatcher catches up.
+ */
+public class DRMAAJobFinishDispatcher extends Thread {
+
+    private static final int QUEUE_CAPACITY = 16384;
+    private static final int MAX_BATCH_SIZE = 512;
+    private DRMAAPlugin plugin;
+    private final BlockingQueue<FinishedJob> queue;
+    private volatile long lastLatency;
+    private volatile long maxLatency;
+    private long totalLatency;
+    private long dispatchedJobs;
+
+    public DRMAAJobFinishDispatcher(DRMAAPlugin plugin) {
+        this.plugin = plugin;
+        queue = new ArrayBlockingQueue<FinishedJob>(QUEUE_CAPACITY);
+        setName("DRMAAJobFinishDispatcher");
+    }
+
+    /**
+     * Hands a reaped job over to the dispatcher. Blocks while the queue is
+     * full. Start and end time are 0 if DRMAA did not report them.
+     */
+    public void enqueue(String jobId, int exitStatus, long startTime, long endTime) throws InterruptedException {
+        queue.put(new FinishedJob(jobId, exitStatus, startTime, endTime, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void run() {
+        List<FinishedJob> batch = new ArrayList<FinishedJob>(MAX_BATCH_SIZE);
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                JobStatusCache cache = plugin.getStatusCache();
+
+                for (FinishedJob job : batch) {
+                    try {
+                        plugin.removeQueuedJob(job.jobId);
+
+                        // Cached only with the times accounting would report
+                        if (job.startTime > 0 && job.endTime > 0) {
+                            GridJobInfo gji = new GridJobInfo(job.jobId);
+                            gji.setState(GridJobInfo.STATE_FINISHED);
+                            gji.setStartTime(job.startTime);
+                            gji.setFinishTime(job.endTime);
+                            gji.setExitStatus(job.exitStatus);
+                            cache.put(gji);
+                        } else {
+                            // let the next lookup get the full record from accounting
+                            cache.invalidate(job.jobId);
+                        }
+                    } catch (Exception ex) {
+                        System.err.println("Unable to update finished job " + job.jobId);
+                        ex.printStackTrace();
+                    }
+                }
+
+                for (FinishedJob job : batch) {
+                    try {
+                        plugin.fireEvent(new EventFinished(job.jobId, "1", job.reapTime, job.exitStatus));
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+
+                    recordLatency(System.currentTimeMillis() - job.reapTime);
+                }
+            } catch (InterruptedException ex) {
+                System.err.println("DRMAA Plugin Job Finish Dispatcher interrupted");
+                ex.printStackTrace();
+            } catch (Exception ex) {
+                // The listener blocks once the queue is full, keep draining it
+                System.err.println("DRMAA Plugin Job Finish Dispatcher failure");
+                ex.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private synchronized void recordLatency(long latency) {
+        lastLatency = latency;
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+        totalLatency += latency;
+        dispatchedJobs++;
+    }
+
+    /**
+     * Returns the number of reaped jobs waiting to be dispatched.
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the time in milliseconds between reaping and firing the event
+     * of the last dispatched job.
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public synchronized long getAverageLatency() {
+        return dispatchedJobs == 0 ? 0 : totalLatency / dispatchedJobs;
+    }
+
+    public synchronized long getDispatchedJobs() {
+        return dispatchedJobs;
+    }
+
+    private static class FinishedJob {
+
+        final String jobId;
+        final int exitStatus;
+        final long startTime;
+        final long endTime;
+        final long reapTime;
+
+        FinishedJob(String jobId, int exitStatus, long startTime, long endTime, long reapTime) {
+            this.jobId = jobId;
+            this.exitStatus = exitStatus;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.reapTime = reapTime;
+        }
+    }
+}
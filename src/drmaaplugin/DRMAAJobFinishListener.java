@@ -23,23 +23,28 @@
  */
 package drmaaplugin;
 
+import java.util.Map;
 import java.util.logging.Logger;
 import org.ggf.drmaa.InvalidJobException;
 import org.ggf.drmaa.JobInfo;
 import org.ggf.drmaa.Session;
-import plgrid.event.EventFinished;
 
 /**
+ * Reaps finished jobs from DRMAA and passes them on to the
+ * DRMAAJobFinishDispatcher, which fires the events.
  *
  * @author Petros Petrosyan
  */
 public class DRMAAJobFinishListener extends Thread {
 
     private DRMAAPlugin plugin;
+    private DRMAAJobFinishDispatcher dispatcher;
     private static final Logger logger = Logger.getLogger(DRMAAJobFinishListener.class.getName());
 
-    public DRMAAJobFinishListener(DRMAAPlugin plugin) {
+    public DRMAAJobFinishListener(DRMAAPlugin plugin, DRMAAJobFinishDispatcher dispatcher) {
         this.plugin = plugin;
+        this.dispatcher = dispatcher;
+        setName("DRMAAJobFinishListener");
     }
 
     @Override
@@ -69,11 +74,8 @@ public class DRMAAJobFinishListener extends Thread {
 
             if (info != null) {
                 try {
-                    String jobId = info.getJobId();
-                    EventFinished ef = new EventFinished(jobId, "1",
-                            System.currentTimeMillis(), info.getExitStatus());
-                    plugin.removeQueuedJob(jobId);
-                    plugin.fireEvent(ef);
+                    dispatcher.enqueue(info.getJobId(), info.getExitStatus(),
+                            getUsageTime(info, "start_time"), getUsageTime(info, "end_time"));
 
                 } catch (Exception ex) {
                     ex.printStackTrace();
@@ -81,4 +83,23 @@ public class DRMAAJobFinishListener extends Thread {
             }
         }
     }
+
+    /**
+     * Returns a time of the job in milliseconds from its DRMAA resource usage,
+     * where SGE reports start_time and end_time in seconds, or 0 if it is not
+     * available.
+     */
+    private long getUsageTime(JobInfo info, String name) {
+        try {
+            Map<?, ?> usage = info.getResourceUsage();
+
+            if (usage != null && usage.get(name) != null) {
+                return (long) (Double.parseDouble(usage.get(name).toString()) * 1000);
+            }
+        } catch (Exception ex) {
+            // times are optional
+        }
+
+        return 0;
+    }
 }
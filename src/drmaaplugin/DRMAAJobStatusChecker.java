@@ -23,10 +23,10 @@
  */
 package drmaaplugin;
 
-import java.util.List;
 import org.ggf.drmaa.DrmCommunicationException;
 import org.ggf.drmaa.InvalidJobException;
 import org.ggf.drmaa.Session;
+import plgrid.GridJobInfo;
 import plgrid.event.EventRunning;
 
 /**
@@ -36,6 +36,13 @@ import plgrid.event.EventRunning;
 public class DRMAAJobStatusChecker extends Thread {
 
     private DRMAAPlugin plugin;
+    private static final long SUBMIT_GRACE_PERIOD = 10000;
+    private volatile long minInterval = 1000;
+    private volatile long maxInterval = 15000;
+    private volatile long currentInterval = 1000;
+    private volatile long lastPassDuration;
+    private final Object lock = new Object();
+    private boolean jobsSubmitted;
 
     public DRMAAJobStatusChecker(DRMAAPlugin plugin) {
         this.plugin = plugin;
@@ -48,47 +55,224 @@ public class DRMAAJobStatusChecker extends Thread {
         Session session = plugin.getSession();
 
         while (true) {
+            long passStart = System.currentTimeMillis();
+            int transitions = 0;
+
             try {
-                List<String> queuedJobs = plugin.getQueuedJobs();
+                if (plugin.isSnapshotPolling()) {
+                    transitions = checkSnapshot();
+                } else {
+                    transitions = checkEachJob(session);
+                }
+            } catch (Exception ex) {
+                // A failed pass must not stop status updates for good
+                System.err.println("DRMAA Plugin Job Status Checker failure");
+                ex.printStackTrace();
+            }
+
+            lastPassDuration = System.currentTimeMillis() - passStart;
+
+            try {
+                waitForNextPass(transitions);
+            } catch (InterruptedException ex) {
+                System.err.println("DRMAA Plugin Job Status Checker failure");
+                ex.printStackTrace();
+            }
+        }
+    }
 
-                for (String jobID : queuedJobs) {
+    /**
+     * Adapts the polling interval and sleeps until the next pass. The interval
+     * drops to the minimum while jobs change state or get submitted, doubles
+     * up to the maximum while nothing happens, and is never shorter than
+     * twice the duration of the last pass so a slow qmaster is not flooded.
+     * A submission wakes the checker up early, but not before that floor.
+     */
+    private void waitForNextPass(int transitions) throws InterruptedException {
+        synchronized (lock) {
+            long interval;
 
-                    int status = -1;
-                    try {
-                        System.out.println("Getting status of job " + jobID);
-                        status = session.getJobProgramStatus(jobID);
+            if (transitions > 0 || jobsSubmitted) {
+                interval = minInterval;
+            } else {
+                interval = Math.min(currentInterval * 2, maxInterval);
+            }
 
-                        System.out.println("Status: " + status);
-                        if (status != Session.DONE) {
+            long floor = Math.min(lastPassDuration * 2, maxInterval);
 
-                            if (status == Session.RUNNING) {
-                                plugin.fireEvent(new EventRunning(jobID, "1"));
-                                plugin.removeQueuedJob(jobID);
-                            } else {
-                                //logger.log(Level.SEVERE, "getJobProgramStatus of " + job + " returned status: " + status);
-                            }
-                        }
-                    } catch (DrmCommunicationException ex) {
+            interval = Math.max(interval, floor);
+
+            currentInterval = interval;
+            jobsSubmitted = false;
+
+            long start = System.currentTimeMillis();
+            long deadline = start + interval;
+            long now = start;
 
-                        if (ex.getMessage().contains("GDI mismatch")) {
-                            // ignore this
-                        } else {
-                            System.err.println("Unable to getJobProgramStatus of job " + jobID);
-                            ex.printStackTrace();
+            while (true) {
+                if (jobsSubmitted) {
+                    deadline = Math.min(deadline, start + floor);
+                }
+
+                if (now >= deadline) {
+                    break;
+                }
+
+                lock.wait(deadline - now);
+                now = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Called by the plugin after submitting jobs, so they are polled at the
+     * shortest interval.
+     */
+    public void jobsSubmitted() {
+        synchronized (lock) {
+            if (!jobsSubmitted) {
+                jobsSubmitted = true;
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * Sets the bounds of the polling interval in milliseconds.
+     */
+    public void setIntervalBounds(long minInterval, long maxInterval) {
+        if (minInterval <= 0 || maxInterval < minInterval) {
+            System.err.println("Invalid job status checker interval bounds: " + minInterval + ", " + maxInterval);
+            return;
+        }
+
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /**
+     * Returns the current interval between two passes in milliseconds.
+     */
+    public long getCurrentInterval() {
+        return currentInterval;
+    }
+
+    /**
+     * Returns how long the last pass took in milliseconds.
+     */
+    public long getLastPassDuration() {
+        return lastPassDuration;
+    }
+
+    /**
+     * Takes one qstat snapshot for all registered jobs and compares it with
+     * the state each job had in the previous pass. EventRunning is fired only
+     * for jobs which started since then, so the cost of a pass does not
+     * depend on how many jobs are waiting in the queue.
+     */
+    private int checkSnapshot() {
+        JobRegistry registry = plugin.getJobRegistry();
+        int transitions = 0;
+
+        if (registry.isEmpty()) {
+            return transitions;
+        }
+
+        QstatSnapshot snapshot = plugin.getQstatSnapshot();
+
+        if (snapshot == null) {
+            return transitions;
+        }
+
+        for (JobRegistry.Entry entry : registry.entries()) {
+            String jobID = entry.getJobId();
+            int state = snapshot.getState(jobID);
+
+            if (state < 0) {
+                // Job was seen before, or was submitted well before this
+                // snapshot, and left qmaster. Finish listener takes care of it.
+                if (entry.getState() != GridJobInfo.STATE_UNKNOWN
+                        || entry.getSubmitTime() < snapshot.getTimestamp() - SUBMIT_GRACE_PERIOD) {
+                    registry.remove(jobID);
+                    plugin.getStatusCache().invalidate(jobID);
+                    transitions++;
+                }
+                continue;
+            }
+
+            int previousState = registry.setState(jobID, state);
+
+            if (previousState != state) {
+                transitions++;
+
+                try {
+                    plugin.getStatusCache().put(snapshot.getJobInfo(jobID));
+
+                    if (state == GridJobInfo.STATE_RUNNING) {
+                        plugin.fireEvent(new EventRunning(jobID, "1"));
+                    }
+                } catch (Exception ex) {
+                    System.err.println("Unable to update status of job " + jobID);
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        return transitions;
+    }
+
+    private int checkEachJob(Session session) {
+        JobRegistry registry = plugin.getJobRegistry();
+        int transitions = 0;
+
+        for (JobRegistry.Entry entry : registry.entries()) {
+
+            if (entry.getState() == GridJobInfo.STATE_RUNNING) {
+                // Already reported, finish listener will remove it
+                continue;
+            }
+
+            String jobID = entry.getJobId();
+            int status = -1;
+            try {
+                System.out.println("Getting status of job " + jobID);
+                status = session.getJobProgramStatus(jobID);
+
+                System.out.println("Status: " + status);
+                if (status != Session.DONE) {
+
+                    if (status == Session.RUNNING) {
+                        plugin.fireEvent(new EventRunning(jobID, "1"));
+                        registry.setState(jobID, GridJobInfo.STATE_RUNNING);
+                        plugin.getStatusCache().updateState(jobID, GridJobInfo.STATE_RUNNING);
+                        transitions++;
+                    } else if (status == Session.QUEUED_ACTIVE) {
+                        if (registry.setState(jobID, GridJobInfo.STATE_QUEUED) != GridJobInfo.STATE_QUEUED) {
+                            plugin.getStatusCache().updateState(jobID, GridJobInfo.STATE_QUEUED);
+                            transitions++;
                         }
-                    } catch (InvalidJobException ex) {
-                        plugin.removeQueuedJob(jobID);
-                    } catch (Exception ex) {
-                        System.err.println("Unable to getJobProgramStatus of job " + jobID);
-                        ex.printStackTrace();
+                    } else {
+                        //logger.log(Level.SEVERE, "getJobProgramStatus of " + job + " returned status: " + status);
                     }
                 }
-                sleep(1000);
+            } catch (DrmCommunicationException ex) {
 
-            } catch (InterruptedException ex) {
-                System.err.println("DRMAA Plugin Job Status Checker failure");
+                if (ex.getMessage().contains("GDI mismatch")) {
+                    // ignore this
+                } else {
+                    System.err.println("Unable to getJobProgramStatus of job " + jobID);
+                    ex.printStackTrace();
+                }
+            } catch (InvalidJobException ex) {
+                registry.remove(jobID);
+                plugin.getStatusCache().invalidate(jobID);
+                transitions++;
+            } catch (Exception ex) {
+                System.err.println("Unable to getJobProgramStatus of job " + jobID);
                 ex.printStackTrace();
             }
         }
+
+        return transitions;
     }
-}
\ No newline at end of file
+}
@@ -25,9 +25,11 @@ package drmaaplugin;
 
 import drmaaplugin.accounting.ARCODatabase;
 import drmaaplugin.accounting.SGEAccountingThread;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import org.ggf.drmaa.*;
 import plgrid.GridJobArgument;
 import plgrid.GridJobInfo;
@@ -66,7 +68,12 @@ public class DRMAAPlugin extends PipelineGridPlugin {
 
             session.init("session=loniPipelineServer_DRMAAPlugin");
 
-            DRMAAJobFinishListener l = new DRMAAJobFinishListener(this);
+            templateCache = new JobTemplateCache(session);
+
+            finishDispatcher = new DRMAAJobFinishDispatcher(this);
+            finishDispatcher.start();
+
+            DRMAAJobFinishListener l = new DRMAAJobFinishListener(this, finishDispatcher);
             l.start();
 
         } catch (java.lang.UnsatisfiedLinkError ule) {
@@ -80,36 +87,121 @@ public class DRMAAPlugin extends PipelineGridPlugin {
         }
 
         System.out.println("DRMAAPlugin (version: " + DRMAA_PLUGIN_VERSION + ") started.");
-        queuedJobs = Collections.synchronizedList(new LinkedList<String>());
-
-        DRMAAJobStatusChecker jsc = new DRMAAJobStatusChecker(this);
-        jsc.start();
+        statusChecker = new DRMAAJobStatusChecker(this);
+        statusChecker.start();
     }
 
     public Session getSession() {
         return session;
     }
 
+    public boolean isSnapshotPolling() {
+        return snapshotPolling;
+    }
+
+    public DRMAAJobStatusChecker getStatusChecker() {
+        return statusChecker;
+    }
+
+    public DRMAAJobFinishDispatcher getFinishDispatcher() {
+        return finishDispatcher;
+    }
+
+    public JobStatusCache getStatusCache() {
+        return statusCache;
+    }
+
+    public JobRegistry getJobRegistry() {
+        return jobRegistry;
+    }
+
     public List<String> getQueuedJobs() {
         List<String> ret = new LinkedList<String>();
 
-        ret.addAll(queuedJobs);
+        for (JobRegistry.Entry entry : jobRegistry.entries()) {
+            ret.add(entry.getJobId());
+        }
 
         return ret;
     }
 
     public void removeQueuedJob(String jobId) {
         if (jobId != null) {
-            queuedJobs.remove(jobId);
+            jobRegistry.remove(jobId);
         }
     }
 
+    /**
+     * Submits the job on the plugin's submission pool and returns right away.
+     * The future holds the value submitJob would have returned.
+     */
+    public Future<String> submitJobAsync(GridJobSubmitInfo gji) {
+        return submitJobAsync(gji, null);
+    }
+
+    public Future<String> submitJobAsync(GridJobSubmitInfo gji, DRMAASubmissionQueue.SubmissionCallback callback) {
+        return submissionQueue.submit(gji, callback);
+    }
+
+    public DRMAASubmissionQueue getSubmissionQueue() {
+        return submissionQueue;
+    }
+
+    /**
+     * Submits the job on the plugin's submission pool and waits only for its
+     * job id, so the qmaster round trips of concurrent callers overlap up to
+     * the number of submission threads.
+     */
     @Override
     public String submitJob(GridJobSubmitInfo gji) {
+        Future<String> result = submissionQueue.submit(gji, null);
+        boolean interrupted = false;
+
         try {
-            // Create and configure DRMAA JobTemplate
-            JobTemplate jt = session.createJobTemplate();
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException ex) {
+                    // The job may be submitted already, its id must not get lost
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RejectedExecutionException) {
+                        // The queue was replaced in the meantime
+                        return submitJobDirect(gji);
+                    }
 
+                    ex.printStackTrace();
+                    return "ERROR: Unable to submit job. Internal error occurred\n   Reason: " + ex.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Submits the job on the calling thread, through the batcher if it can
+     * be part of an array job.
+     */
+    String submitJobDirect(GridJobSubmitInfo gji) {
+        SubmissionBatcher batcher = submissionBatcher;
+
+        if (batcher != null && batcher.canBatch(gji)) {
+            return batcher.submit(gji);
+        }
+
+        return submitJobNow(gji);
+    }
+
+    /**
+     * Submits the job right away, without batching.
+     */
+    String submitJobNow(GridJobSubmitInfo gji) {
+        JobTemplateCache.Key key = null;
+        JobTemplate jt = null;
+        try {
             String outputPath = gji.getOutputPath();
             String errorPath = gji.getErrorPath();
 
@@ -127,16 +219,6 @@ public class DRMAAPlugin extends PipelineGridPlugin {
                         + errorPath.substring(lastIndexDot);
             }
 
-            jt.setOutputPath("localhost:" + outputPath);
-            jt.setErrorPath("localhost:" + errorPath);
-
-            if (gji.getEnvironmentProperties() != null) {
-                jt.setJobEnvironment(gji.getEnvironmentProperties());
-            }
-
-            jt.setNativeSpecification(gji.getNativeSpecification());
-
-
             String executableLocation = gji.getCommand();
 
             if (executableLocation == null) {
@@ -156,14 +238,12 @@ public class DRMAAPlugin extends PipelineGridPlugin {
 
             LinkedList<String> args = new LinkedList<String>();
 
-            // Add sudo -u username if privilegeEscalation is set to true
+            // Add sudo -u username if privilegeEscalation is set to true,
+            // the template's remote command is "sudo" then
             if (gji.getPrivilegeEscalation()) {
-                jt.setRemoteCommand("sudo");
                 args.add("-u");
                 args.add(gji.getUsername());
                 args.add(gji.getCommand());
-            } else {
-                jt.setRemoteCommand(gji.getCommand());
             }
 
             for (GridJobArgument arg : arguments) {
@@ -172,36 +252,44 @@ public class DRMAAPlugin extends PipelineGridPlugin {
                     args.add(argValue);
                 }
             }
-            
+
+            // Reuse a DRMAA JobTemplate configured for the same command,
+            // native specification and environment
+            key = new JobTemplateCache.Key(gji);
+            jt = templateCache.acquire(key);
+
+            jt.setOutputPath("localhost:" + outputPath);
+            jt.setErrorPath("localhost:" + errorPath);
             jt.setArgs(args);
 
+            String ret;
+
             if (gji.getSubmissionType() == GridJobSubmitInfo.SUBMISSION_ARRAY) {
                 List<String> jobIDs = session.runBulkJobs(jt, gji.getBeginIndex(), gji.getEndIndex(), 1);
 
-                String ret = "ERROR: Failed to submit jobs";
+                ret = "ERROR: Failed to submit jobs";
 
                 if (!jobIDs.isEmpty()) {
                     ret = jobIDs.get(0) + "-" + gji.getEndIndex() + ":1";
-                    for (String jobID : jobIDs) {
-                        queuedJobs.add(jobID);
-                    }
+                    registerSubmittedJobs(jobIDs);
                 }
-
-                session.deleteJobTemplate(jt);
-
-                return ret;
             } else {
                 // Submit the job
-                String jobID = session.runJob(jt);
+                ret = session.runJob(jt);
 
-                queuedJobs.add(jobID);
+                jobRegistry.add(ret);
+                notifyJobsSubmitted();
+            }
 
-                session.deleteJobTemplate(jt);
+            templateCache.release(key, jt);
 
-                return jobID;
-            }
+            return ret;
 
         } catch (Exception ex) {
+            if (jt != null) {
+                templateCache.discard(jt);
+            }
+
             StringBuilder error = new StringBuilder("ERROR: Unable to submit job. Internal error occurred\n");
 
             error.append("\n     Date: " + new Date().toString());
@@ -212,6 +300,19 @@ public class DRMAAPlugin extends PipelineGridPlugin {
         }
     }
 
+    void registerSubmittedJobs(List<String> jobIDs) {
+        for (String jobID : jobIDs) {
+            jobRegistry.add(jobID);
+        }
+        notifyJobsSubmitted();
+    }
+
+    private void notifyJobsSubmitted() {
+        if (statusChecker != null) {
+            statusChecker.jobsSubmitted();
+        }
+    }
+
     @Override
     public void killJob(String jobId, String username, boolean force) {
 
@@ -229,75 +330,36 @@ public class DRMAAPlugin extends PipelineGridPlugin {
 
     @Override
     public List<GridJobInfo> getJobList(String complexVariables) {
-        List<GridJobInfo> ret = new LinkedList<GridJobInfo>();
+        List<String> command = new LinkedList<String>();
 
-        StringBuilder cmd = new StringBuilder("qstat");
+        command.add("qstat");
+        command.add("-xml");
+        command.add("-r");
 
         if (complexVariables != null && complexVariables.length() > 0) {
-            cmd.append(" -l ");
-            cmd.append(complexVariables);
-        }
+            command.add("-l");
 
-        StringTokenizer st = new StringTokenizer(cmd.toString());
-        String[] command = new String[st.countTokens()];
-
-        for (int k = 0; k < command.length; k++) {
-            command[k] = st.nextToken();
+            StringTokenizer st = new StringTokenizer(complexVariables);
+            while (st.hasMoreTokens()) {
+                command.add(st.nextToken());
+            }
         }
 
-        ProcessBuilder pb = new ProcessBuilder(command);
-        Process process = null;
-        try {
-            process = pb.start();
-            InputStreamReader isr = new InputStreamReader(process.getInputStream());
-            BufferedReader ibr = new BufferedReader(isr);
-
-            String response;
-            int lineNum = 0;
-            while ((response = ibr.readLine()) != null) {
-                // We don't need first two lines 
-                // job-ID  prior   name       user         state submit/start at     queue                          slots ja-task-ID 
-                // -----------------------------------------------------------------------------------------------------------------
-
-                if (lineNum > 1) {
-                    String[] tokens = response.split(" ");
-                    int index = 0;
-
-                    String jobId = "";
-                    String lastToken = "";
-
-                    for (String t : tokens) {
-                        if (t.trim().length() == 0) {
-                            continue;
-                        }
-
-                        if (index == 0) {
-                            jobId = t;
-                        }
+        QstatSnapshot snapshot = runQstat(command);
 
-                        lastToken = t;
-
-                        index++;
-                    }
-
-                    // lastToken is the taskId
-                    ret.add(getJobInfo(jobId + "." + lastToken));
-                }
-                lineNum++;
-            }
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        } finally {
-            if (process != null) {
-                releaseProcess(process);
-            }
+        if (snapshot == null) {
+            return new LinkedList<GridJobInfo>();
         }
 
-        return ret;
+        return snapshot.getJobList();
     }
 
     @Override
     public GridJobInfo getJobInfo(String jobID) {
+        return statusCache.get(jobID, jobInfoLoader);
+    }
+
+    private GridJobInfo lookupJobInfo(String jobID) {
         GridJobInfo gji = new GridJobInfo(jobID);
         try {
             int status = session.getJobProgramStatus(jobID);
@@ -327,6 +389,126 @@ public class DRMAAPlugin extends PipelineGridPlugin {
         return gji;
     }
 
+    @Override
+    public List<GridJobInfo> getBulkJobInfo(List<String> jobIDs) {
+        List<GridJobInfo> ret = new LinkedList<GridJobInfo>();
+
+        if (jobIDs == null || jobIDs.isEmpty()) {
+            return ret;
+        }
+
+        Map<String, GridJobInfo> found = new HashMap<String, GridJobInfo>();
+        List<String> uncached = new LinkedList<String>();
+
+        for (String jobID : jobIDs) {
+            GridJobInfo gji = statusCache.getIfPresent(jobID);
+
+            if (gji != null) {
+                found.put(jobID, gji);
+            } else {
+                uncached.add(jobID);
+            }
+        }
+
+        if (!uncached.isEmpty()) {
+            QstatSnapshot snapshot = getQstatSnapshot();
+
+            if (snapshot == null) {
+                // qstat is not available, fall back to one DRMAA call per job
+                return super.getBulkJobInfo(jobIDs);
+            }
+
+            Set<String> missing = new LinkedHashSet<String>();
+
+            for (String jobID : uncached) {
+                GridJobInfo gji = snapshot.getJobInfo(jobID);
+
+                if (gji != null) {
+                    found.put(jobID, gji);
+                    statusCache.put(gji);
+                } else {
+                    missing.add(jobID);
+                }
+            }
+
+            // Jobs which are not in qmaster anymore are looked up in one go
+            if (!missing.isEmpty()) {
+                Map<String, GridJobInfo> finished = getFinishedJobInfo(missing);
+
+                if (finished != null) {
+                    for (GridJobInfo gji : finished.values()) {
+                        statusCache.put(gji);
+                    }
+                    found.putAll(finished);
+                }
+            }
+        }
+
+        for (String jobID : jobIDs) {
+            GridJobInfo gji = found.get(jobID);
+
+            if (gji == null) {
+                gji = new GridJobInfo(jobID);
+                gji.setState(GridJobInfo.STATE_NOT_FOUND);
+            }
+
+            ret.add(gji);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Runs "qstat -xml" once and returns the parsed state of all jobs, or
+     * null if qstat could not be run or its output could not be parsed.
+     */
+    public QstatSnapshot getQstatSnapshot() {
+        return runQstat(Arrays.asList("qstat", "-xml"));
+    }
+
+    private QstatSnapshot runQstat(List<String> command) {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        Process process = null;
+        try {
+            process = pb.start();
+            return QstatSnapshot.parse(new BufferedInputStream(process.getInputStream()));
+        } catch (Exception ex) {
+            System.err.println("Unable to get qstat snapshot: " + ex.getMessage());
+        } finally {
+            if (process != null) {
+                releaseProcess(process);
+            }
+        }
+
+        return null;
+    }
+
+    private Map<String, GridJobInfo> getFinishedJobInfo(Collection<String> jobIds) {
+        Map<String, GridJobInfo> ret = null;
+        if (finishedJobRetrievalMethod == null || finishedJobRetrievalMethod.trim().length() == 0) {
+            ret = sgeAccountingThread.getFinishedJobInfo(jobIds);
+        } else if (finishedJobRetrievalMethod.toLowerCase().equals("arco")) {
+            if (arcoDatabase == null) {
+                arcoDatabase = new ARCODatabase(this);
+            }
+            ret = arcoDatabase.getFinishedJobInfo(jobIds);
+
+            if (ret == null) {
+                ret = new HashMap<String, GridJobInfo>();
+            }
+        } else {
+            ret = new HashMap<String, GridJobInfo>();
+            for (String jobId : jobIds) {
+                GridJobInfo fji = getFinishedJobInfo(jobId);
+                if (fji != null) {
+                    ret.put(jobId, fji);
+                }
+            }
+        }
+
+        return ret;
+    }
+
     private GridJobInfo getFinishedJobInfo(String jobId) {
         GridJobInfo fji = null;
         if (finishedJobRetrievalMethod == null || finishedJobRetrievalMethod.trim().length() == 0) {
@@ -349,17 +531,100 @@ public class DRMAAPlugin extends PipelineGridPlugin {
 
         finishedJobRetrievalMethod = prefs.get("GridFinishedJobRetrievalMethod");
 
+        // "qstat" polls queued jobs with one qstat snapshot per pass instead
+        // of one DRMAA call per job
+        String pollingMode = prefs.get("GridJobStatusPollingMode");
+        snapshotPolling = pollingMode != null && pollingMode.trim().toLowerCase().equals("qstat");
+
+        // Collect single submissions of the same shape for this many
+        // milliseconds and submit them as one array job, 0 turns it off
+        String batchWindow = prefs.get("GridSubmissionBatchWindow");
+
+        if (batchWindow != null && batchWindow.trim().length() > 0) {
+            try {
+                long window = Long.parseLong(batchWindow.trim());
+
+                if (window > 0) {
+                    if (submissionBatcher == null) {
+                        submissionBatcher = new SubmissionBatcher(this, window);
+                    } else {
+                        submissionBatcher.setWindow(window);
+                    }
+                    submissionBatcher.setBatchDirectory(prefs.get("GridSubmissionBatchDirectory"));
+                } else if (submissionBatcher != null) {
+                    submissionBatcher.shutdown();
+                    submissionBatcher = null;
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid submission batch window: " + batchWindow);
+            }
+        }
+
+        // Number of threads submitting jobs at the same time
+        String submissionThreads = prefs.get("GridSubmissionThreads");
+        int numSubmissionThreads = DEFAULT_SUBMISSION_THREADS;
+
+        if (submissionThreads != null && submissionThreads.trim().length() > 0) {
+            try {
+                numSubmissionThreads = Integer.parseInt(submissionThreads.trim());
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid number of submission threads: " + submissionThreads);
+            }
+        }
+
+        if (numSubmissionThreads <= 0) {
+            System.err.println("Invalid number of submission threads: " + numSubmissionThreads);
+            numSubmissionThreads = DEFAULT_SUBMISSION_THREADS;
+        }
+
+        // Queued submissions of the old pool still run, its threads end then
+        DRMAASubmissionQueue oldQueue = submissionQueue;
+        submissionQueue = new DRMAASubmissionQueue(this, numSubmissionThreads, SUBMISSION_QUEUE_CAPACITY);
+        oldQueue.shutdown();
+
+        // How long queued and running states are cached, in milliseconds
+        String cacheTTL = prefs.get("GridJobStatusCacheTTL");
+
+        if (cacheTTL != null && cacheTTL.trim().length() > 0) {
+            try {
+                statusCache.setTimeToLive(Long.parseLong(cacheTTL.trim()));
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid job status cache TTL: " + cacheTTL);
+            }
+        }
+
+        // Bounds of the adaptive polling interval in milliseconds
+        String minInterval = prefs.get("GridJobStatusMinInterval");
+        String maxInterval = prefs.get("GridJobStatusMaxInterval");
+
+        if (statusChecker != null && (minInterval != null || maxInterval != null)) {
+            try {
+                long min = minInterval == null ? 1000 : Long.parseLong(minInterval.trim());
+                long max = maxInterval == null ? 15000 : Long.parseLong(maxInterval.trim());
+                statusChecker.setIntervalBounds(min, max);
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid job status polling interval: " + ex.getMessage());
+            }
+        }
+
         if (finishedJobRetrievalMethod == null || finishedJobRetrievalMethod.trim().length() == 0) {
 
             if (arcoDatabase != null) {
-                // turn off ARCo if it is on.
-                arcoDatabase = new ARCODatabase(this);
+                // turn off ARCo if it is on, with its replication thread,
+                // connections and local copy
                 arcoDatabase.shutdown();
+                arcoDatabase = null;
             }
 
             if (sgeAccountingThread == null) {
                 // turn on SGE Accounting thread if it is off.
                 sgeAccountingThread = new SGEAccountingThread(SGE_ROOT, SGE_CELL);
+                sgeAccountingThread.setParserMode(prefs.get("GridAccountingParser"));
+                sgeAccountingThread.setStoreMode(prefs.get("GridFinishedJobStore"));
+                sgeAccountingThread.setTailMode(prefs.get("GridAccountingTailMode"));
+                sgeAccountingThread.setBackfillWindow(prefs.get("GridAccountingBackfillHours"));
+                sgeAccountingThread.setRetentionWindow(prefs.get("GridAccountingRetentionHours"));
+                sgeAccountingThread.setNegativeCacheFpp(prefs.get("GridFinishedJobNegativeCacheFpp"));
                 sgeAccountingThread.start();
             }
         } else if (finishedJobRetrievalMethod.toLowerCase().equals("arco")) {
@@ -414,8 +679,24 @@ public class DRMAAPlugin extends PipelineGridPlugin {
     private final String SGE_CELL;
     private final String SGE_PORT;
     private Session session;
-    private List<String> queuedJobs;
+    private final JobRegistry jobRegistry = new JobRegistry();
+    private final JobStatusCache statusCache = new JobStatusCache();
+    private static final int DEFAULT_SUBMISSION_THREADS = 8;
+    private static final int SUBMISSION_QUEUE_CAPACITY = 4096;
+    private volatile DRMAASubmissionQueue submissionQueue = new DRMAASubmissionQueue(this, DEFAULT_SUBMISSION_THREADS,
+            SUBMISSION_QUEUE_CAPACITY);
+    private final JobStatusCache.Loader jobInfoLoader = new JobStatusCache.Loader() {
+        @Override
+        public GridJobInfo load(String jobId) {
+            return lookupJobInfo(jobId);
+        }
+    };
     private String finishedJobRetrievalMethod;
+    private volatile boolean snapshotPolling;
+    private DRMAAJobStatusChecker statusChecker;
+    private DRMAAJobFinishDispatcher finishDispatcher;
+    private JobTemplateCache templateCache;
+    private volatile SubmissionBatcher submissionBatcher;
     private ARCODatabase arcoDatabase;
     private SGEAccountingThread sgeAccountingThread;
     public static final String DRMAA_PLUGIN_VERSION = "3.0.2";
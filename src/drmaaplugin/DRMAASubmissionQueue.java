@@ -0,0 +1,210 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import plgrid.GridJobSubmitInfo;
+
+/**
+ * Submits jobs on a bounded pool of worker threads, so the qmaster round
+ * trips of many submissions overlap instead of adding up on the caller's
+ * thread. When all workers are busy and the queue is full, the submitting
+ * thread runs the submission itself, which slows callers down instead of
+ * growing the queue without limit.
+ *
+ * The plugin's submitJob goes through this queue too and waits for the job
+ * id, so concurrent Pipeline threads share the pool. Worker threads are
+ * daemons and end after a minute without work.
+ */
+public class DRMAASubmissionQueue {
+
+    /**
+     * Notified when an asynchronous submission completes. The result is the
+     * job id, or the error message returned by submitJob.
+     */
+    public interface SubmissionCallback {
+
+        void submitted(GridJobSubmitInfo gji, String result, long latency);
+    }
+
+    private final DRMAAPlugin plugin;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger pending = new AtomicInteger();
+    private long submittedJobs;
+    private long totalLatency;
+    private long maxLatency;
+    private volatile long lastLatency;
+
+    public DRMAASubmissionQueue(DRMAAPlugin plugin, int numThreads, int capacity) {
+        this.plugin = plugin;
+
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DRMAASubmission-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    ((SubmissionTask) r).reject();
+                } else {
+                    // Queue is full, the caller submits the job itself
+                    r.run();
+                }
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the submission and returns a future holding the same value
+     * submitJob would return. The callback, if not null, is called on the
+     * worker thread once the job has been submitted.
+     */
+    public Future<String> submit(final GridJobSubmitInfo gji, final SubmissionCallback callback) {
+        final long queuedTime = System.currentTimeMillis();
+
+        pending.incrementAndGet();
+
+        SubmissionTask task = new SubmissionTask(gji, callback, new Callable<String>() {
+            @Override
+            public String call() {
+                String result;
+                try {
+                    result = plugin.submitJobDirect(gji);
+                } finally {
+                    pending.decrementAndGet();
+                }
+
+                long latency = System.currentTimeMillis() - queuedTime;
+                recordLatency(latency);
+
+                if (callback != null) {
+                    try {
+                        callback.submitted(gji, result, latency);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+
+                return result;
+            }
+        });
+
+        executor.execute(task);
+
+        return task;
+    }
+
+    /**
+     * A queued submission, which fails instead of never completing when it
+     * is rejected after shutdown.
+     */
+    private class SubmissionTask extends FutureTask<String> {
+
+        private final GridJobSubmitInfo gji;
+        private final SubmissionCallback callback;
+
+        SubmissionTask(GridJobSubmitInfo gji, SubmissionCallback callback, Callable<String> callable) {
+            super(callable);
+            this.gji = gji;
+            this.callback = callback;
+        }
+
+        void reject() {
+            pending.decrementAndGet();
+            setException(new RejectedExecutionException("Submission queue has been shut down"));
+
+            if (callback != null) {
+                try {
+                    callback.submitted(gji, "ERROR: Submission queue has been shut down", 0);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private synchronized void recordLatency(long latency) {
+        lastLatency = latency;
+        if (latency > maxLatency) {
+            maxLatency = latency;
+        }
+        totalLatency += latency;
+        submittedJobs++;
+    }
+
+    public void setNumThreads(int numThreads) {
+        if (numThreads <= 0) {
+            System.err.println("Invalid number of submission threads: " + numThreads);
+            return;
+        }
+
+        if (numThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(numThreads);
+            executor.setCorePoolSize(numThreads);
+        } else {
+            executor.setCorePoolSize(numThreads);
+            executor.setMaximumPoolSize(numThreads);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the number of submissions which are queued or in progress.
+     */
+    public int getPendingSubmissions() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the time in milliseconds from queueing to completion of the last
+     * submission.
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public synchronized long getAverageLatency() {
+        return submittedJobs == 0 ? 0 : totalLatency / submittedJobs;
+    }
+
+    public synchronized long getSubmittedJobs() {
+        return submittedJobs;
+    }
+}
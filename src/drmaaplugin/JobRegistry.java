@@ -0,0 +1,112 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import plgrid.GridJobInfo;
+
+/**
+ * Keeps track of the jobs submitted by this plugin which did not finish yet.
+ * Each job is stored with its last known state and submission time. All
+ * operations are constant time and lock free for readers, so the status
+ * checker can iterate over the jobs while new jobs are being submitted and
+ * finished ones removed.
+ */
+public class JobRegistry {
+
+    private final ConcurrentHashMap<String, Entry> jobs = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Registers a newly submitted job. Its state stays STATE_UNKNOWN until
+     * the status checker sees the job in qmaster.
+     */
+    public void add(String jobId) {
+        jobs.put(jobId, new Entry(jobId, System.currentTimeMillis()));
+    }
+
+    public Entry remove(String jobId) {
+        return jobs.remove(jobId);
+    }
+
+    public Entry get(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Sets the last known state of the job. Returns the previous state, or -1
+     * if the job is not registered.
+     */
+    public int setState(String jobId, int state) {
+        Entry entry = jobs.get(jobId);
+
+        if (entry == null) {
+            return -1;
+        }
+
+        int previous = entry.state;
+        entry.state = state;
+        return previous;
+    }
+
+    /**
+     * Returns a live view of the registered jobs. Iterating over it does not
+     * copy anything and never throws ConcurrentModificationException.
+     */
+    public Collection<Entry> entries() {
+        return jobs.values();
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    public boolean isEmpty() {
+        return jobs.isEmpty();
+    }
+
+    public static class Entry {
+
+        private final String jobId;
+        private final long submitTime;
+        private volatile int state = GridJobInfo.STATE_UNKNOWN;
+
+        private Entry(String jobId, long submitTime) {
+            this.jobId = jobId;
+            this.submitTime = submitTime;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public long getSubmitTime() {
+            return submitTime;
+        }
+
+        public int getState() {
+            return state;
+        }
+    }
+}
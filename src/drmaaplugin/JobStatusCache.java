@@ -0,0 +1,216 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import plgrid.GridJobInfo;
+
+/**
+ * Caches job status answers in front of DRMAA and the finished job stores.
+ *
+ * Live states (queued, running, errored, not found) are kept for a
+ * configurable time to live. Finished jobs never change anymore and are kept
+ * until the cache has to make room for newer ones. Concurrent lookups of the
+ * same job share one call to the loader, and the status checker and finish
+ * dispatcher push state changes into the cache as they see them.
+ */
+public class JobStatusCache {
+
+    /**
+     * Looks up a job when it is not in the cache.
+     */
+    public interface Loader {
+
+        GridJobInfo load(String jobId);
+    }
+
+    private static final int MAX_FINISHED_ENTRIES = 200000;
+    private final ConcurrentHashMap<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+    private final ConcurrentHashMap<String, FutureTask<GridJobInfo>> loading = new ConcurrentHashMap<String, FutureTask<GridJobInfo>>();
+    private final ConcurrentLinkedQueue<String> finishedJobs = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger numFinishedJobs = new AtomicInteger();
+    private volatile long timeToLive = 2000;
+
+    /**
+     * Returns the cached info of the job, or loads it with the given loader.
+     * Only one thread loads a given job at a time, the others wait for its
+     * result.
+     */
+    public GridJobInfo get(final String jobId, final Loader loader) {
+        GridJobInfo gji = getIfPresent(jobId);
+
+        if (gji != null) {
+            return gji;
+        }
+
+        FutureTask<GridJobInfo> task = new FutureTask<GridJobInfo>(new Callable<GridJobInfo>() {
+            @Override
+            public GridJobInfo call() {
+                GridJobInfo loaded = loader.load(jobId);
+                put(loaded);
+                return loaded;
+            }
+        });
+
+        FutureTask<GridJobInfo> running = loading.putIfAbsent(jobId, task);
+
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(jobId, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            ex.getCause().printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the cached info of the job, or null if it is not cached or
+     * expired.
+     */
+    public GridJobInfo getIfPresent(String jobId) {
+        CacheEntry entry = entries.get(jobId);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.expires > 0 && entry.expires < System.currentTimeMillis()) {
+            entries.remove(jobId, entry);
+            return null;
+        }
+
+        return entry.info;
+    }
+
+    /**
+     * Stores the latest known info of a job.
+     */
+    public void put(GridJobInfo gji) {
+        if (gji == null || gji.getJobId() == null) {
+            return;
+        }
+
+        if (gji.getState() == GridJobInfo.STATE_FINISHED) {
+            CacheEntry previous = entries.put(gji.getJobId(), new CacheEntry(gji, 0));
+
+            if (previous == null || previous.expires > 0) {
+                finishedJobs.add(gji.getJobId());
+                if (numFinishedJobs.incrementAndGet() > MAX_FINISHED_ENTRIES) {
+                    evictFinishedJobs();
+                }
+            }
+        } else if (timeToLive > 0) {
+            forgetFinished(gji.getJobId(),
+                    entries.put(gji.getJobId(), new CacheEntry(gji, System.currentTimeMillis() + timeToLive)));
+        } else {
+            forgetFinished(gji.getJobId(), entries.remove(gji.getJobId()));
+        }
+    }
+
+    // A finished entry which got replaced leaves the eviction order too, so
+    // the count of finished jobs stays right
+    private void forgetFinished(String jobId, CacheEntry previous) {
+        if (previous != null && previous.expires == 0 && finishedJobs.remove(jobId)) {
+            numFinishedJobs.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stores a state change seen by the status checker.
+     */
+    public void updateState(String jobId, int state) {
+        GridJobInfo gji = new GridJobInfo(jobId);
+        gji.setState(state);
+        put(gji);
+    }
+
+    /**
+     * Drops the cached live state of a job. Finished jobs stay cached, their
+     * state does not change anymore.
+     */
+    public void invalidate(String jobId) {
+        CacheEntry entry = entries.get(jobId);
+
+        if (entry != null && entry.expires > 0) {
+            entries.remove(jobId, entry);
+        }
+    }
+
+    // Finished jobs are evicted oldest first once there are too many of them
+    private void evictFinishedJobs() {
+        while (numFinishedJobs.get() > MAX_FINISHED_ENTRIES) {
+            String jobId = finishedJobs.poll();
+
+            if (jobId == null) {
+                break;
+            }
+
+            numFinishedJobs.decrementAndGet();
+
+            CacheEntry entry = entries.get(jobId);
+            if (entry != null && entry.expires == 0) {
+                entries.remove(jobId, entry);
+            }
+        }
+    }
+
+    /**
+     * Sets how long queued, running and not found answers are kept, in
+     * milliseconds. Zero disables caching of these states.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class CacheEntry {
+
+        final GridJobInfo info;
+        final long expires;
+
+        CacheEntry(GridJobInfo info, long expires) {
+            this.info = info;
+            this.expires = expires;
+        }
+    }
+}
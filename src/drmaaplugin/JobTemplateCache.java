@@ -0,0 +1,202 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin;
+
+import java.util.*;
+import org.ggf.drmaa.DrmaaException;
+import org.ggf.drmaa.JobTemplate;
+import org.ggf.drmaa.Session;
+import plgrid.GridJobSubmitInfo;
+
+/**
+ * Keeps idle DRMAA job templates for reuse. Templates are grouped by the
+ * parts of a submission which are the same for all jobs of a module: the
+ * command, native specification, environment and privilege escalation.
+ * Those are set once when a template is created; callers only set the
+ * arguments and output/error paths of each job.
+ *
+ * A template is used by one submission at a time. Only idle templates are
+ * kept, at most MAX_IDLE_TEMPLATES of them, and the least recently used
+ * ones are deleted first.
+ */
+public class JobTemplateCache {
+
+    private static final int MAX_IDLE_TEMPLATES = 64;
+    private final Session session;
+    private final LinkedHashMap<Key, LinkedList<JobTemplate>> idleTemplates;
+    private int numIdleTemplates;
+
+    public JobTemplateCache(Session session) {
+        this.session = session;
+        idleTemplates = new LinkedHashMap<Key, LinkedList<JobTemplate>>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns an idle template for the given key, or creates and configures a
+     * new one.
+     */
+    public JobTemplate acquire(Key key) throws DrmaaException {
+        synchronized (this) {
+            LinkedList<JobTemplate> templates = idleTemplates.get(key);
+
+            if (templates != null) {
+                JobTemplate jt = templates.removeFirst();
+                numIdleTemplates--;
+
+                if (templates.isEmpty()) {
+                    idleTemplates.remove(key);
+                }
+
+                return jt;
+            }
+        }
+
+        JobTemplate jt = session.createJobTemplate();
+
+        try {
+            if (key.environment != null) {
+                jt.setJobEnvironment(key.environment);
+            }
+
+            jt.setNativeSpecification(key.nativeSpecification);
+
+            if (key.privilegeEscalation) {
+                jt.setRemoteCommand("sudo");
+            } else {
+                jt.setRemoteCommand(key.command);
+            }
+        } catch (DrmaaException ex) {
+            discard(jt);
+            throw ex;
+        }
+
+        return jt;
+    }
+
+    /**
+     * Returns a template after a successful submission so it can be reused.
+     */
+    public void release(Key key, JobTemplate jt) {
+        List<JobTemplate> evicted = new LinkedList<JobTemplate>();
+
+        synchronized (this) {
+            LinkedList<JobTemplate> templates = idleTemplates.get(key);
+
+            if (templates == null) {
+                templates = new LinkedList<JobTemplate>();
+                idleTemplates.put(key, templates);
+            }
+
+            templates.add(jt);
+            numIdleTemplates++;
+
+            // Evict from the least recently used keys first
+            Iterator<LinkedList<JobTemplate>> it = idleTemplates.values().iterator();
+            while (numIdleTemplates > MAX_IDLE_TEMPLATES && it.hasNext()) {
+                LinkedList<JobTemplate> lru = it.next();
+
+                while (numIdleTemplates > MAX_IDLE_TEMPLATES && !lru.isEmpty()) {
+                    evicted.add(lru.removeFirst());
+                    numIdleTemplates--;
+                }
+
+                if (lru.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        // Delete outside of the lock, no one else can see these anymore
+        for (JobTemplate t : evicted) {
+            discard(t);
+        }
+    }
+
+    /**
+     * Deletes a template which must not be reused, e.g. after a failed
+     * submission.
+     */
+    public void discard(JobTemplate jt) {
+        try {
+            session.deleteJobTemplate(jt);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public synchronized int getNumIdleTemplates() {
+        return numIdleTemplates;
+    }
+
+    /**
+     * The parts of a submission that are stored in a reusable template.
+     */
+    public static class Key {
+
+        private final String command;
+        private final String nativeSpecification;
+        private final Properties environment;
+        private final boolean privilegeEscalation;
+
+        public Key(GridJobSubmitInfo gji) {
+            command = gji.getCommand();
+            nativeSpecification = gji.getNativeSpecification();
+            privilegeEscalation = gji.getPrivilegeEscalation();
+
+            if (gji.getEnvironmentProperties() != null) {
+                // Copy, callers may reuse their Properties object
+                environment = new Properties();
+                environment.putAll(gji.getEnvironmentProperties());
+            } else {
+                environment = null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) o;
+
+            return privilegeEscalation == k.privilegeEscalation
+                    && equal(command, k.command)
+                    && equal(nativeSpecification, k.nativeSpecification)
+                    && equal(environment, k.environment);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = command == null ? 0 : command.hashCode();
+            h = 31 * h + (nativeSpecification == null ? 0 : nativeSpecification.hashCode());
+            h = 31 * h + (environment == null ? 0 : environment.hashCode());
+            return 31 * h + (privilegeEscalation ? 1 : 0);
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
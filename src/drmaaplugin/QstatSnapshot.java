@@ -0,0 +1,301 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin;
+
+import java.io.InputStream;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import plgrid.GridJobInfo;
+
+/**
+ * Cluster-wide view of the jobs known to qmaster at one point in time, built
+ * from a single "qstat -xml" run. Lets the plugin answer status questions for
+ * many jobs without a DRMAA round trip per job.
+ *
+ * Non-array jobs are keyed by their job number ("123"), array tasks by job
+ * number and task number ("123.4"), which is the same format DRMAA returns
+ * from runBulkJobs. Pending array tasks which qstat reports as a range
+ * ("1-100:1") are kept as ranges and resolved on lookup.
+ *
+ * Besides the state, submission and start times are filled in, and when
+ * qstat was run with "-r" the hard resource requests of each job are added
+ * as complex variables.
+ */
+public class QstatSnapshot {
+
+    private final Map<String, GridJobInfo> jobs;
+    private final Map<String, List<PendingTasks>> pendingTasks;
+    private final long timestamp;
+
+    private QstatSnapshot(long timestamp) {
+        this.timestamp = timestamp;
+        jobs = new LinkedHashMap<String, GridJobInfo>();
+        pendingTasks = new LinkedHashMap<String, List<PendingTasks>>();
+    }
+
+    /**
+     * Parses the output of "qstat -xml" in a single streaming pass.
+     */
+    public static QstatSnapshot parse(InputStream in) throws XMLStreamException {
+        QstatSnapshot snapshot = new QstatSnapshot(System.currentTimeMillis());
+
+        // qstat prints local time without zone, e.g. 2013-01-15T10:20:30
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+
+        try {
+            String jobNumber = null;
+            String tasks = null;
+            GridJobInfo job = null;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+
+                    if (name.equals("job_list")) {
+                        jobNumber = null;
+                        tasks = null;
+                        job = new GridJobInfo(null);
+                    } else if (job != null) {
+                        if (name.equals("JB_job_number")) {
+                            jobNumber = reader.getElementText().trim();
+                        } else if (name.equals("state")) {
+                            job.setState(toGridState(reader.getElementText().trim()));
+                        } else if (name.equals("tasks")) {
+                            tasks = reader.getElementText().trim();
+                        } else if (name.equals("JB_submission_time")) {
+                            job.setQueuedTime(parseTime(dateFormat, reader.getElementText()));
+                        } else if (name.equals("JAT_start_time")) {
+                            job.setStartTime(parseTime(dateFormat, reader.getElementText()));
+                        } else if (name.equals("hard_request")) {
+                            String variable = reader.getAttributeValue(null, "name");
+                            String value = reader.getElementText().trim();
+
+                            if (variable != null) {
+                                job.addComplexVariable(variable, value);
+                            }
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (job != null && reader.getLocalName().equals("job_list")) {
+                        if (jobNumber != null) {
+                            snapshot.addJob(jobNumber, tasks, job);
+                        }
+                        job = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return snapshot;
+    }
+
+    private static long parseTime(SimpleDateFormat dateFormat, String text) {
+        Date date = dateFormat.parse(text.trim(), new ParsePosition(0));
+
+        return date == null ? 0 : date.getTime();
+    }
+
+    /**
+     * Maps qstat state letters (e.g. "r", "qw", "hqw", "Eqw") to the
+     * corresponding GridJobInfo state.
+     */
+    public static int toGridState(String stateCode) {
+        if (stateCode == null) {
+            return GridJobInfo.STATE_UNKNOWN;
+        }
+
+        if (stateCode.indexOf('E') >= 0) {
+            return GridJobInfo.STATE_ERRORED;
+        }
+
+        if (stateCode.indexOf('r') >= 0 || stateCode.indexOf('t') >= 0) {
+            return GridJobInfo.STATE_RUNNING;
+        }
+
+        if (stateCode.indexOf('q') >= 0 || stateCode.indexOf('w') >= 0) {
+            return GridJobInfo.STATE_QUEUED;
+        }
+
+        return GridJobInfo.STATE_UNKNOWN;
+    }
+
+    private void addJob(String jobNumber, String tasks, GridJobInfo job) {
+        if (tasks == null || tasks.length() == 0) {
+            jobs.put(jobNumber, copy(jobNumber, job));
+            return;
+        }
+
+        // Running tasks are listed one per entry, pending ones as a
+        // comma separated list of single ids and "first-last:step" ranges
+        StringTokenizer st = new StringTokenizer(tasks, ",");
+
+        while (st.hasMoreTokens()) {
+            String t = st.nextToken().trim();
+
+            int dash = t.indexOf('-');
+            if (dash < 0) {
+                String jobId = jobNumber + "." + t;
+                jobs.put(jobId, copy(jobId, job));
+                continue;
+            }
+
+            int colon = t.indexOf(':');
+            try {
+                PendingTasks pt = new PendingTasks();
+                pt.first = Integer.parseInt(t.substring(0, dash));
+                pt.last = Integer.parseInt(colon < 0 ? t.substring(dash + 1) : t.substring(dash + 1, colon));
+                pt.step = colon < 0 ? 1 : Integer.parseInt(t.substring(colon + 1));
+                pt.job = job;
+
+                List<PendingTasks> ranges = pendingTasks.get(jobNumber);
+                if (ranges == null) {
+                    ranges = new LinkedList<PendingTasks>();
+                    pendingTasks.put(jobNumber, ranges);
+                }
+                ranges.add(pt);
+            } catch (NumberFormatException ex) {
+                System.err.println("Unable to parse task range \"" + t + "\" of job " + jobNumber);
+            }
+        }
+    }
+
+    private static GridJobInfo copy(String jobId, GridJobInfo job) {
+        GridJobInfo gji = new GridJobInfo(jobId);
+        gji.setState(job.getState());
+        gji.setQueuedTime(job.getQueuedTime());
+        gji.setStartTime(job.getStartTime());
+
+        for (Map.Entry<String, String> e : job.getComplexVariables().entrySet()) {
+            gji.addComplexVariable(e.getKey(), e.getValue());
+        }
+
+        return gji;
+    }
+
+    /**
+     * Returns the job's info as seen in this snapshot, or null if qmaster
+     * did not report the job.
+     */
+    public GridJobInfo getJobInfo(String jobId) {
+        GridJobInfo gji = jobs.get(jobId);
+
+        if (gji != null) {
+            return gji;
+        }
+
+        PendingTasks pt = findPendingTasks(jobId);
+
+        return pt == null ? null : copy(jobId, pt.job);
+    }
+
+    private PendingTasks findPendingTasks(String jobId) {
+        int dot = jobId.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+
+        List<PendingTasks> ranges = pendingTasks.get(jobId.substring(0, dot));
+
+        if (ranges == null) {
+            return null;
+        }
+
+        int taskId;
+        try {
+            taskId = Integer.parseInt(jobId.substring(dot + 1));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        for (PendingTasks pt : ranges) {
+            if (pt.contains(taskId)) {
+                return pt;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns all jobs in this snapshot, with pending task ranges expanded to
+     * one entry per task.
+     */
+    public List<GridJobInfo> getJobList() {
+        List<GridJobInfo> ret = new LinkedList<GridJobInfo>(jobs.values());
+
+        for (Map.Entry<String, List<PendingTasks>> e : pendingTasks.entrySet()) {
+            for (PendingTasks pt : e.getValue()) {
+                for (int taskId = pt.first; taskId <= pt.last; taskId += pt.step) {
+                    ret.add(copy(e.getKey() + "." + taskId, pt.job));
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the state of the job in this snapshot, or -1 if qmaster did not
+     * report the job.
+     */
+    public int getState(String jobId) {
+        GridJobInfo gji = jobs.get(jobId);
+
+        if (gji != null) {
+            return gji.getState();
+        }
+
+        PendingTasks pt = findPendingTasks(jobId);
+
+        return pt == null ? -1 : pt.job.getState();
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    private static class PendingTasks {
+
+        int first;
+        int last;
+        int step;
+        GridJobInfo job;
+
+        boolean contains(int taskId) {
+            return taskId >= first && taskId <= last && (taskId - first) % step == 0;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.ggf.drmaa.JobTemplate;
+import org.ggf.drmaa.Session;
+import plgrid.GridJobArgument;
+import plgrid.GridJobSubmitInfo;
+
+/**
+ * Coalesces single job submissions which only differ in their arguments and
+ * output/error paths into one SGE array job.
+ *
+ * Submissions with the same command, native specification, environment and
+ * privilege escalation are collected for a short window. Each batch is
+ * written to an index file, one task per line, and submitted with
+ * runBulkJobs. A small wrapper script picks the line of $SGE_TASK_ID, sets up
+ * the task's output and error files and runs the command with its
+ * arguments. Every caller blocks until the batch is submitted and gets its
+ * own task id ("123.4") back.
+ *
+ * Index and wrapper files are written next to the output file of the first
+ * job of the batch, unless a batch directory is configured. The last task to
+ * read its line removes them, together with the file counting the tasks
+ * which did. A submission made while no other one is waiting is not held
+ * back for the window.
+ */
+public class SubmissionBatcher {
+
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final AtomicLong batchCounter = new AtomicLong();
+    private final DRMAAPlugin plugin;
+    private final ScheduledExecutorService scheduler;
+    private final Map<JobTemplateCache.Key, Batch> openBatches = new HashMap<JobTemplateCache.Key, Batch>();
+    private final AtomicInteger submitters = new AtomicInteger();
+    private volatile long window;
+    private volatile String batchDirectory;
+
+    public SubmissionBatcher(DRMAAPlugin plugin, long window) {
+        this.plugin = plugin;
+        this.window = window;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DRMAASubmissionBatcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns true if the submission can be part of an array job. The wrapper
+     * reads tab separated fields, so arguments and paths must not be empty or
+     * contain tabs or line breaks.
+     */
+    public boolean canBatch(GridJobSubmitInfo gji) {
+        if (gji.getSubmissionType() != GridJobSubmitInfo.SUBMISSION_SINGLE
+                || gji.getCommand() == null || gji.getUsername() == null
+                || gji.getArguments() == null || gji.getArguments().contains(null)) {
+            return false;
+        }
+
+        if (!isSafe(gji.getOutputPath()) || !isSafe(gji.getErrorPath()) || !isSafe(gji.getCommand())) {
+            return false;
+        }
+
+        for (GridJobArgument arg : gji.getArguments()) {
+            if (arg.getValue() != null && !isSafe(arg.getValue())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isSafe(String value) {
+        return value != null && value.length() > 0
+                && value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+
+    /**
+     * Adds the submission to the open batch of its shape and waits until the
+     * batch has been submitted. Returns the job id of the task, or an error
+     * message like submitJob does.
+     */
+    public String submit(GridJobSubmitInfo gji) {
+        submitters.incrementAndGet();
+        try {
+            return submitBatched(gji);
+        } finally {
+            submitters.decrementAndGet();
+        }
+    }
+
+    private String submitBatched(GridJobSubmitInfo gji) {
+        JobTemplateCache.Key key = new JobTemplateCache.Key(gji);
+        PendingSubmission ps = new PendingSubmission(gji);
+        Batch full = null;
+
+        synchronized (openBatches) {
+            Batch batch = openBatches.get(key);
+
+            if (batch == null && submitters.get() == 1) {
+                // Nobody else is submitting, there is nothing to wait for
+                ps = null;
+            } else if (batch == null) {
+                batch = new Batch(key);
+
+                // Scheduled before it is published, a batch nobody would
+                // flush must never be joined
+                final Batch scheduled = batch;
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush(scheduled);
+                        }
+                    }, window, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    // Shut down, submit on its own
+                    batch = null;
+                }
+
+                if (batch != null) {
+                    openBatches.put(key, batch);
+                }
+            }
+
+            if (batch != null) {
+                batch.submissions.add(ps);
+
+                if (batch.submissions.size() >= MAX_BATCH_SIZE) {
+                    openBatches.remove(key);
+                    full = batch;
+                }
+            } else {
+                ps = null;
+            }
+        }
+
+        if (ps == null) {
+            return plugin.submitJobNow(gji);
+        }
+
+        if (full != null) {
+            flush(full);
+        }
+
+        try {
+            ps.done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return "ERROR: Interrupted while waiting for batched submission";
+        }
+
+        return ps.result;
+    }
+
+    private void flush(Batch batch) {
+        synchronized (openBatches) {
+            if (batch.flushed) {
+                return;
+            }
+            batch.flushed = true;
+
+            if (openBatches.get(batch.key) == batch) {
+                openBatches.remove(batch.key);
+            }
+        }
+
+        List<PendingSubmission> submissions = batch.submissions;
+
+        try {
+            if (submissions.size() == 1) {
+                PendingSubmission ps = submissions.get(0);
+                ps.result = plugin.submitJobNow(ps.gji);
+            } else {
+                submitArrayJob(batch.key, submissions);
+            }
+        } catch (Exception ex) {
+            StringBuilder error = new StringBuilder("ERROR: Unable to submit job. Internal error occurred\n");
+
+            error.append("\n     Date: " + new Date().toString());
+            error.append("\n   Reason: " + ex.getMessage());
+            System.err.println(error.toString());
+            ex.printStackTrace();
+
+            for (PendingSubmission ps : submissions) {
+                if (ps.result == null) {
+                    ps.result = error.toString();
+                }
+            }
+        } finally {
+            for (PendingSubmission ps : submissions) {
+                ps.done.countDown();
+            }
+        }
+    }
+
+    private void submitArrayJob(JobTemplateCache.Key key, List<PendingSubmission> submissions) throws Exception {
+        GridJobSubmitInfo first = submissions.get(0).gji;
+
+        File dir;
+        if (batchDirectory != null) {
+            dir = new File(batchDirectory);
+        } else {
+            dir = new File(first.getOutputPath()).getAbsoluteFile().getParentFile();
+        }
+
+        String name = "batch_" + System.currentTimeMillis() + "_" + batchCounter.incrementAndGet();
+        File index = new File(dir, name + ".idx");
+        File wrapper = new File(dir, name + ".sh");
+        File done = new File(dir, name + ".done");
+
+        // One line per task: output path, error path, then the command line
+        Writer w = new OutputStreamWriter(new FileOutputStream(index), "UTF-8");
+        try {
+            for (PendingSubmission ps : submissions) {
+                GridJobSubmitInfo gji = ps.gji;
+
+                w.write(gji.getOutputPath());
+                w.write('\t');
+                w.write(gji.getErrorPath());
+
+                if (gji.getPrivilegeEscalation()) {
+                    w.write("\tsudo\t-u\t");
+                    w.write(gji.getUsername());
+                }
+
+                w.write('\t');
+                w.write(gji.getCommand());
+
+                for (GridJobArgument arg : gji.getArguments()) {
+                    if (arg.getValue() != null) {
+                        w.write('\t');
+                        w.write(arg.getValue());
+                    }
+                }
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+
+        String indexPath = quote(index.getAbsolutePath());
+        String donePath = quote(done.getAbsolutePath());
+
+        w = new OutputStreamWriter(new FileOutputStream(wrapper), "UTF-8");
+        try {
+            w.write("#!/bin/bash\n");
+            w.write("IFS=$'\\t' read -r -a TASK < <(sed -n \"${SGE_TASK_ID}{p;q}\" " + indexPath + ")\n");
+            // Every task marks that it has read its line, the last one
+            // removes the batch files. bash keeps the open script readable.
+            w.write("echo >> " + donePath + "\n");
+            w.write("if [ \"$(wc -l < " + donePath + ")\" -ge " + submissions.size() + " ]; then rm -f "
+                    + indexPath + " " + quote(wrapper.getAbsolutePath()) + " " + donePath + "; fi\n");
+            w.write("exec \"${TASK[@]:2}\" > \"${TASK[0]}\" 2> \"${TASK[1]}\"\n");
+        } finally {
+            w.close();
+        }
+
+        Session session = plugin.getSession();
+        JobTemplate jt = null;
+        boolean submitted = false;
+
+        try {
+            jt = session.createJobTemplate();
+
+            if (first.getEnvironmentProperties() != null) {
+                jt.setJobEnvironment(first.getEnvironmentProperties());
+            }
+
+            jt.setNativeSpecification(first.getNativeSpecification());
+            jt.setRemoteCommand("/bin/bash");
+            jt.setArgs(Collections.singletonList(wrapper.getAbsolutePath()));
+            jt.setOutputPath("localhost:/dev/null");
+            jt.setErrorPath("localhost:/dev/null");
+
+            List<?> jobIDs = session.runBulkJobs(jt, 1, submissions.size(), 1);
+            submitted = true;
+
+            if (jobIDs.size() != submissions.size()) {
+                throw new Exception("Array job returned " + jobIDs.size() + " tasks for " + submissions.size() + " submissions");
+            }
+
+            List<String> ids = new ArrayList<String>(jobIDs.size());
+            for (int i = 0; i < jobIDs.size(); i++) {
+                String jobID = jobIDs.get(i).toString();
+                submissions.get(i).result = jobID;
+                ids.add(jobID);
+            }
+
+            plugin.registerSubmittedJobs(ids);
+        } finally {
+            if (jt != null) {
+                session.deleteJobTemplate(jt);
+            }
+
+            // No task will ever read them
+            if (!submitted) {
+                index.delete();
+                wrapper.delete();
+            }
+        }
+    }
+
+    private static String quote(String path) {
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Sets how long submissions are collected before a batch is submitted,
+     * in milliseconds.
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets a shared directory for index and wrapper files. If null, the
+     * directory of the first job's output file is used.
+     */
+    public void setBatchDirectory(String batchDirectory) {
+        this.batchDirectory = batchDirectory;
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    private static class Batch {
+
+        final JobTemplateCache.Key key;
+        final List<PendingSubmission> submissions = new ArrayList<PendingSubmission>();
+        boolean flushed;
+
+        Batch(JobTemplateCache.Key key) {
+            this.key = key;
+        }
+    }
+
+    private static class PendingSubmission {
+
+        final GridJobSubmitInfo gji;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String result;
+
+        PendingSubmission(GridJobSubmitInfo gji) {
+            this.gji = gji;
+        }
+    }
+}
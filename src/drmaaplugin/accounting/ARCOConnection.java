@@ -0,0 +1,182 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A pooled ARCo connection together with its prepared statements. Every
+ * lookup shape is prepared once per connection and reused by later lookups,
+ * so MySQL parses and plans it only once (with useServerPrepStmts the plan is
+ * kept on the server). When the connection is replaced after a failure, the
+ * new holder prepares its statements again.
+ *
+ * Bulk lookups use IN lists of a few fixed sizes, padded by repeating the
+ * last job number, so they share a small number of statements as well.
+ */
+class ARCOConnection {
+
+    static final int JOB_QUERY = 0;
+    static final int TASK_QUERY = 1;
+    static final int SYNC_QUERY = 2;
+    private static final int FIRST_BULK_QUERY = 3;
+    static final int[] BULK_SIZES = {8, 64, 500};
+    private static final String SELECT = "SELECT j_job_number, j_task_number, ju_end_time, ju_exit_status, ju_start_time "
+            + "FROM sge_job, sge_job_usage "
+            + "WHERE j_id=ju_parent ";
+    private final Connection connection;
+    private final ARCODatabase database;
+    private final PreparedStatement[] statements = new PreparedStatement[FIRST_BULK_QUERY + BULK_SIZES.length];
+
+    ARCOConnection(Connection connection, ARCODatabase database) {
+        this.connection = connection;
+        this.database = database;
+    }
+
+    /**
+     * Returns the smallest bulk IN list size which holds n job numbers.
+     */
+    static int getBulkSize(int n) {
+        for (int size : BULK_SIZES) {
+            if (n <= size) {
+                return size;
+            }
+        }
+        throw new IllegalArgumentException("At most " + BULK_SIZES[BULK_SIZES.length - 1] + " jobs per query");
+    }
+
+    private static String getQuery(int shape) {
+        if (shape == JOB_QUERY) {
+            return SELECT + "AND j_job_number=? ORDER BY ju_end_time DESC";
+        }
+
+        if (shape == TASK_QUERY) {
+            return SELECT + "AND j_job_number=? AND j_task_number=? ORDER BY ju_end_time DESC";
+        }
+
+        if (shape == SYNC_QUERY) {
+            // Rows after the (end time, row id) position, in that order
+            return "SELECT j_job_number, j_task_number, ju_end_time, ju_exit_status, ju_start_time, ju_id "
+                    + "FROM sge_job, sge_job_usage "
+                    + "WHERE j_id=ju_parent "
+                    + "AND (ju_end_time > ? OR (ju_end_time = ? AND ju_id > ?)) "
+                    + "ORDER BY ju_end_time, ju_id LIMIT ?";
+        }
+
+        StringBuilder sb = new StringBuilder(SELECT);
+        int size = BULK_SIZES[shape - FIRST_BULK_QUERY];
+
+        sb.append("AND j_job_number IN (");
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        sb.append(") ORDER BY j_job_number, ju_end_time DESC");
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the statement of the given shape.
+     */
+    PreparedStatement getStatement(int shape) throws SQLException {
+        if (!database.isStatementCacheEnabled()) {
+            database.statementPrepared();
+            return connection.prepareStatement(getQuery(shape));
+        }
+
+        if (statements[shape] == null) {
+            database.statementPrepared();
+            statements[shape] = connection.prepareStatement(getQuery(shape));
+        }
+
+        return statements[shape];
+    }
+
+    /**
+     * Returns the statement for a bulk lookup of n job numbers. The caller
+     * fills all getBulkSize(n) parameters.
+     */
+    PreparedStatement getBulkStatement(int n) throws SQLException {
+        int size = getBulkSize(n);
+
+        for (int i = 0; i < BULK_SIZES.length; i++) {
+            if (BULK_SIZES[i] == size) {
+                return getStatement(FIRST_BULK_QUERY + i);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Called when the caller is done with a statement. Statements are only
+     * closed here if they are not cached.
+     */
+    void release(PreparedStatement statement) {
+        if (!database.isStatementCacheEnabled() && statement != null) {
+            try {
+                statement.close();
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    boolean isClosed() throws SQLException {
+        return connection.isClosed();
+    }
+
+    /**
+     * Returns true if the server answers on this connection within the
+     * timeout in seconds.
+     */
+    boolean isValid(int timeout) {
+        try {
+            return connection.isValid(timeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    void close() {
+        for (int i = 0; i < statements.length; i++) {
+            if (statements[i] != null) {
+                try {
+                    statements[i].close();
+                } catch (SQLException ex) {
+                    // HARMLESS, the connection may be gone already
+                }
+                statements[i] = null;
+            }
+        }
+
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of ARCo connections. Idle connections wait in a concurrent queue, so
+ * lookups never hold a lock while another connection is used or repaired.
+ *
+ * A connection which failed is handed back with invalidate. It is closed and
+ * replaced by a background thread, while the caller goes on. A single repair
+ * task replaces the failed connections one after the other. Consecutive
+ * failures open a circuit breaker: while it is open acquire fails at once
+ * instead of waiting for a database which is down, and the repair task
+ * probes ARCo with growing pauses until a connection succeeds again. Idle
+ * connections are validated in the background as well, so a connection
+ * which died while idle is repaired before a lookup picks it up.
+ */
+class ARCOConnectionPool {
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_PROBE_INTERVAL = 3000;
+    private static final long MAX_PROBE_INTERVAL = 60000;
+    private static final long VALIDATION_INTERVAL = 60000;
+    private static final int VALIDATION_TIMEOUT = 5; // seconds
+    private final LinkedBlockingQueue<ARCOConnection> idle = new LinkedBlockingQueue<ARCOConnection>();
+    private final ScheduledExecutorService maintenance;
+    private final ARCODatabase database;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int size;
+    private final long acquireTimeout;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger missing = new AtomicInteger();
+    private final AtomicInteger repairing = new AtomicInteger();
+    private final AtomicBoolean repairScheduled = new AtomicBoolean();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private volatile boolean open;
+    private volatile long probeInterval = MIN_PROBE_INTERVAL;
+    private volatile boolean shutdown;
+
+    /**
+     * @param acquireTimeout time in milliseconds acquire waits for an idle
+     * connection
+     */
+    ARCOConnectionPool(ARCODatabase database, String url, String username, String password, int size,
+            long acquireTimeout) throws SQLException {
+        this.database = database;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.size = size;
+        this.acquireTimeout = acquireTimeout;
+
+        try {
+            for (int i = 0; i < size; i++) {
+                idle.add(connect());
+            }
+        } catch (SQLException ex) {
+            ARCOConnection connection;
+            while ((connection = idle.poll()) != null) {
+                connection.close();
+            }
+            throw ex;
+        }
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ARCo connection pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                validateIdleConnections();
+            }
+        }, VALIDATION_INTERVAL, VALIDATION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private ARCOConnection connect() throws SQLException {
+        return new ARCOConnection(DriverManager.getConnection(url, username, password), database);
+    }
+
+    /**
+     * Returns an idle connection, or null if none became idle within the
+     * acquire timeout or ARCo is down.
+     */
+    ARCOConnection acquire() {
+        if (open || shutdown) {
+            rejections.incrementAndGet();
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        ARCOConnection connection;
+
+        try {
+            connection = idle.poll(acquireTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        long wait = System.currentTimeMillis() - start;
+
+        totalWaitTime.addAndGet(wait);
+        acquisitions.incrementAndGet();
+
+        long max;
+        while (wait > (max = maxWaitTime.get()) && !maxWaitTime.compareAndSet(max, wait)) {
+            // retry
+        }
+
+        if (connection == null) {
+            timeouts.incrementAndGet();
+            System.err.println("ARCo: No connection available within " + acquireTimeout + " ms.");
+            return null;
+        }
+
+        inUse.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * Returns a connection which worked.
+     */
+    void release(ARCOConnection connection) {
+        inUse.decrementAndGet();
+        consecutiveFailures.set(0);
+
+        if (shutdown) {
+            connection.close();
+        } else {
+            idle.offer(connection);
+        }
+    }
+
+    /**
+     * Returns a connection which failed. It is closed and replaced in the
+     * background.
+     */
+    void invalidate(ARCOConnection connection) {
+        inUse.decrementAndGet();
+        discard(connection);
+    }
+
+    private void discard(ARCOConnection connection) {
+        connection.close();
+
+        if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD && !open) {
+            open = true;
+            System.err.println("ARCo: Database seems to be down, failing lookups until it is back.");
+        }
+
+        missing.incrementAndGet();
+
+        // the task already scheduled picks this connection up as well
+        if (repairScheduled.compareAndSet(false, true)) {
+            scheduleRepair(open ? probeInterval : 0);
+        }
+    }
+
+    private void scheduleRepair(long delay) {
+        if (shutdown) {
+            return;
+        }
+
+        maintenance.schedule(new Runnable() {
+            @Override
+            public void run() {
+                repair();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Opens replacement connections one at a time. If ARCo cannot be
+    // reached the task schedules itself again after a growing pause.
+    private void repair() {
+        while (!shutdown && missing.get() > 0) {
+            ARCOConnection connection;
+
+            repairing.incrementAndGet();
+            try {
+                connection = connect();
+            } catch (SQLException ex) {
+                System.err.println("ARCo: Reconnecting failed: " + ex.getMessage());
+
+                if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+                    open = true;
+                }
+
+                probeInterval = Math.min(probeInterval * 2, MAX_PROBE_INTERVAL);
+                scheduleRepair(probeInterval);
+                return;
+            } finally {
+                repairing.decrementAndGet();
+            }
+
+            consecutiveFailures.set(0);
+            probeInterval = MIN_PROBE_INTERVAL;
+
+            if (open) {
+                open = false;
+                System.out.println("ARCo: Database is reachable again.");
+            }
+
+            missing.decrementAndGet();
+            idle.offer(connection);
+        }
+
+        repairScheduled.set(false);
+
+        // a connection discarded while the flag was still set
+        if (!shutdown && missing.get() > 0 && repairScheduled.compareAndSet(false, true)) {
+            scheduleRepair(0);
+        }
+    }
+
+    // Takes the idle connections out one at a time, so lookups can still
+    // get the others while a dead one is waiting for its validation timeout
+    private void validateIdleConnections() {
+        for (int i = idle.size(); i > 0; i--) {
+            ARCOConnection connection = idle.poll();
+
+            if (connection == null) {
+                break;
+            }
+
+            if (connection.isValid(VALIDATION_TIMEOUT)) {
+                idle.offer(connection);
+            } else {
+                System.out.println("ARCo: Replacing broken idle connection.");
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Returns true while the circuit breaker rejects lookups.
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getInUse() {
+        return inUse.get();
+    }
+
+    int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of failed connections not replaced yet.
+     */
+    int getMissing() {
+        return missing.get();
+    }
+
+    /**
+     * Returns the number of replacement connections being opened.
+     */
+    int getRepairing() {
+        return repairing.get();
+    }
+
+    /**
+     * Returns the fraction of connections in use.
+     */
+    double getUtilization() {
+        return (double) inUse.get() / size;
+    }
+
+    long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * Returns the average time in milliseconds acquire waited.
+     */
+    long getAverageWaitTime() {
+        long n = acquisitions.get();
+
+        return n == 0 ? 0 : totalWaitTime.get() / n;
+    }
+
+    long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of acquires rejected by the open circuit breaker.
+     */
+    long getRejections() {
+        return rejections.get();
+    }
+
+    void shutdown() {
+        shutdown = true;
+        maintenance.shutdownNow();
+
+        ARCOConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return inUse.get() + "/" + size + " in use, " + idle.size() + " idle, " + missing.get() + " missing, "
+                + repairing.get() + " repairing, "
+                + "wait avg " + getAverageWaitTime() + " ms max " + maxWaitTime.get() + " ms, "
+                + timeouts.get() + " timeouts, " + rejections.get() + " rejected" + (open ? ", circuit open" : "");
+    }
+}
@@ -23,12 +23,18 @@
  */
 package drmaaplugin.accounting;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import plgrid.GridJobInfo;
 import plgrid.PipelineGridPlugin;
 
@@ -38,192 +44,311 @@ import plgrid.PipelineGridPlugin;
  */
 public class ARCODatabase {
 
-    private Semaphore semaphore;
-    private final LinkedList<Connection> availableConnections;
-    private final Set<Connection> allConnections;
+    private static final int BULK_QUERY_SIZE = 500;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final long DEFAULT_ACQUIRE_TIMEOUT = 10000;
+    private static final long DEFAULT_CACHE_SIZE = 16; // MB
+    private static final long DEFAULT_NOT_FOUND_TTL = 5000;
+    private static final long DEFAULT_SYNC_WINDOW = 24; // hours
+    private static final long DEFAULT_SYNC_INTERVAL = 10000;
+    private ARCOConnectionPool pool;
+    private ARCOResultCache resultCache;
+    private ARCOReplicator replicator;
     private String arcoURL;
     private String arcoUsername;
     private String arcoPassword;
     private boolean useSGEArrayJobs;
+    private boolean useStatementCache;
     private PipelineGridPlugin plugin;
     private boolean initialized;
+    private final AtomicLong preparedStatements = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong queryTime = new AtomicLong();
 
     public ARCODatabase(PipelineGridPlugin plugin) {
         this.plugin = plugin;
 
         final int numConnections = 5;
-        semaphore = new Semaphore(numConnections, true);
-        allConnections = new CopyOnWriteArraySet<Connection>();
-        availableConnections = new LinkedList<Connection>();
 
         Map<String, String> preferences = plugin.getPreferences();
 
-        arcoURL = preferences.get("GridJobAccountingURL");
+        arcoURL = getServerPreparedURL(preferences.get("GridJobAccountingURL"));
         arcoUsername = preferences.get("GridJobAccountingUsername");
         arcoPassword = preferences.get("GridJobAccountingPassword");
         useSGEArrayJobs = Boolean.parseBoolean(preferences.get("GridUseArrayJobs"));
+        useStatementCache = !"false".equalsIgnoreCase(preferences.get("GridJobAccountingStatementCache"));
+
+        long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+
+        try {
+            String timeout = preferences.get("GridJobAccountingAcquireTimeout");
+
+            if (timeout != null) {
+                acquireTimeout = Long.parseLong(timeout.trim());
+            }
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid ARCo connection acquire timeout: " + ex.getMessage());
+        }
+
+        long cacheSize = DEFAULT_CACHE_SIZE;
+        long notFoundTTL = DEFAULT_NOT_FOUND_TTL;
+
+        try {
+            String size = preferences.get("GridJobAccountingCacheSize");
+            String ttl = preferences.get("GridJobAccountingNotFoundTTL");
+
+            if (size != null) {
+                cacheSize = Long.parseLong(size.trim());
+            }
+            if (ttl != null) {
+                notFoundTTL = Long.parseLong(ttl.trim());
+            }
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid ARCo result cache setting: " + ex.getMessage());
+        }
+
+        if (cacheSize > 0) {
+            resultCache = new ARCOResultCache(cacheSize * 1024 * 1024, notFoundTTL);
+        }
 
         if (arcoURL != null && arcoURL.length() > 0) {
             try {
                 Class.forName("com.mysql.jdbc.Driver");
-                // populate our cache of connections
-                for (int i = 0; i < numConnections; i++) {
-                    Connection conn = DriverManager.getConnection(arcoURL, arcoUsername, arcoPassword);
-                    availableConnections.add(conn);
-                }
+                pool = new ARCOConnectionPool(this, arcoURL, arcoUsername, arcoPassword, numConnections, acquireTimeout);
                 initialized = true;
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
         }
 
-        allConnections.addAll(availableConnections);
+        if (initialized && Boolean.parseBoolean(preferences.get("GridJobAccountingSync"))) {
+            startReplicator(preferences);
+        }
     }
 
-    public void shutdown() {
-        for (Connection conn : allConnections) {
-            try {
-                conn.close();
-            } catch (Exception ex) {
-                ex.printStackTrace();
+    /**
+     * Starts copying finished jobs from ARCo into arcoDB.idx, so lookups are
+     * answered locally and only jobs which finished after the last pass go
+     * to ARCo.
+     */
+    private void startReplicator(Map<String, String> preferences) {
+        long window = DEFAULT_SYNC_WINDOW;
+        long interval = DEFAULT_SYNC_INTERVAL;
+
+        try {
+            String hours = preferences.get("GridJobAccountingSyncHours");
+            String millis = preferences.get("GridJobAccountingSyncInterval");
+
+            if (hours != null) {
+                window = Long.parseLong(hours.trim());
             }
+            if (millis != null) {
+                interval = Long.parseLong(millis.trim());
+            }
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid ARCo replication setting: " + ex.getMessage());
         }
 
-        allConnections.clear();
-        availableConnections.clear();
-    }
-
-    public Connection acquireConnection() {
         try {
-            semaphore.acquire();
-        } catch (Exception ex) {
+            FinishedJobIndex index = new FinishedJobIndex(new File("arcoDB.idx").getAbsoluteFile());
+
+            replicator = new ARCOReplicator(this, pool, index, window * 60 * 60 * 1000, interval);
+            replicator.start();
+        } catch (IOException ex) {
+            System.err.println("Could not open the local copy of ARCo, all lookups go to ARCo.");
             ex.printStackTrace();
         }
+    }
 
-        // we synchronize this next bit, so the LinkedList doesn't throw a
-        // ConcurrentModificationException
-        synchronized (ARCODatabase.class) {
-            return availableConnections.removeFirst();
+    /**
+     * Asks MySQL Connector/J for server side prepared statements, unless the
+     * URL says otherwise, so cached statements are also parsed only once on
+     * the server.
+     */
+    private static String getServerPreparedURL(String url) {
+        if (url == null || url.length() == 0 || url.contains("useServerPrepStmts")) {
+            return url;
         }
-    }
 
-    public void reconnectConnection(Connection connection) {
+        return url + (url.contains("?") ? "&" : "?") + "useServerPrepStmts=true";
+    }
 
-        // verify that the connection being returned to us is actually one of ours
-        if (!allConnections.contains(connection)) {
-            throw new IllegalArgumentException("You must reconnect the connection given to you");
+    public void shutdown() {
+        if (replicator != null) {
+            replicator.shutdown();
+        }
+        if (pool != null) {
+            pool.shutdown();
         }
+    }
 
-        synchronized (ARCODatabase.class) {
+    /**
+     * Returns the state of the connection pool: connections in use, idle and
+     * being repaired, acquire wait times, timeouts and whether ARCo is
+     * considered down.
+     */
+    public String getPoolStatus() {
+        return pool == null ? "not connected" : pool.toString();
+    }
 
-            allConnections.remove(connection);
+    /**
+     * Returns the state of the result cache: entries, estimated memory use,
+     * hits, misses and evictions.
+     */
+    public String getCacheStatus() {
+        return resultCache == null ? "disabled" : resultCache.toString();
+    }
 
-            do {
-                try {
-                    System.out.println(" Reconnecting to ARCO database");
-                    Class.forName("com.mysql.jdbc.Driver");
-                    connection = DriverManager.getConnection(arcoURL, arcoUsername, arcoPassword);
-                    allConnections.add(connection);
-                    availableConnections.add(connection);
-                    System.out.println(" ARCO database Reconnection success !");
-                    break;
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
+    /**
+     * Returns the state of the local copy of ARCo: jobs, watermark and the
+     * duration of the last pass.
+     */
+    public String getReplicationStatus() {
+        return replicator == null ? "disabled" : replicator.toString();
+    }
 
-                // if connection fails, we will try again to reconnect until it is successfull
-                // because this connection is very important to Pipeline.
-                try {
-                    Thread.sleep(3000);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
+    boolean isStatementCacheEnabled() {
+        return useStatementCache;
+    }
+
+    void statementPrepared() {
+        preparedStatements.incrementAndGet();
+    }
 
-            } while (true);
+    ResultSet executeQuery(PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+
+        try {
+            return statement.executeQuery();
+        } finally {
+            queries.incrementAndGet();
+            queryTime.addAndGet(System.nanoTime() - start);
         }
-        semaphore.release();
     }
 
-    public void releaseConnection(Connection connection) {
+    /**
+     * Returns the number of statements prepared so far. With the statement
+     * cache this stays at a few per connection, without it it grows with
+     * every query.
+     */
+    public long getPreparedStatements() {
+        return preparedStatements.get();
+    }
 
-        // verify that the connection being returned to us is actually one of ours
-        if (!allConnections.contains(connection)) {
-            throw new IllegalArgumentException("You must release the connection given to you");
+    /**
+     * Returns the number of queries sent to ARCo.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the average time in microseconds from sending a query until
+     * its result arrived.
+     */
+    public long getAverageQueryTime() {
+        long n = queries.get();
+
+        return n == 0 ? 0 : queryTime.get() / n / 1000;
+    }
+
+    public GridJobInfo getFinishedJobInfo(String jobId) {
+        if (!initialized) {
+            return null;
         }
 
-        synchronized (ARCODatabase.class) {
-            try {
-                if (connection.isClosed()) {
-                    System.out.println("Connection to ARCO database is closed. Creating new connection.");    // added an exception to get the stack trace
-
-                    // now we need to remove this connection from our set, and create a new one
-                    allConnections.remove(connection);
-
-                    try {
-                        Class.forName("com.mysql.jdbc.Driver");
-                        connection = DriverManager.getConnection(arcoURL, arcoUsername, arcoPassword);
-                        allConnections.add(connection);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        return;
-                    }
-                }
-            } catch (SQLException sqlEx) {
-                sqlEx.printStackTrace();
+        GridJobInfo gji = resultCache == null ? null : resultCache.get(jobId);
 
-                reconnectConnection(connection);
+        if (gji == null) {
+            gji = getReplicatedJobInfo(jobId);
+        }
+
+        if (gji == null) {
+            gji = queryFinishedJobInfo(jobId);
+
+            if (resultCache != null) {
+                resultCache.put(gji);
             }
-            availableConnections.add(connection);
         }
-        semaphore.release();
+
+        return gji;
     }
 
-    public GridJobInfo getFinishedJobInfo(String jobId) {
-        if (!initialized) {
+    /**
+     * Returns the job from the local copy of ARCo, or null if it has to be
+     * looked up in ARCo: the copy is off or still catching up, or the job
+     * finished after the last pass.
+     */
+    private GridJobInfo getReplicatedJobInfo(String jobId) {
+        if (replicator == null || (!useSGEArrayJobs && jobId.contains("."))) {
             return null;
         }
 
+        GridJobInfo gji = replicator.get(jobId);
+
+        if (gji != null && resultCache != null) {
+            resultCache.put(gji);
+        }
+
+        return gji;
+    }
+
+    private GridJobInfo queryFinishedJobInfo(String jobId) {
         GridJobInfo gji = new GridJobInfo(jobId);
 
         gji.setState(GridJobInfo.STATE_NOT_FOUND);
 
-        Connection connection = null;
-        Statement statement = null;
-        try {
-            ResultSet rs = null;
+        long jobNumber;
+        long taskNumber = -1;
 
-            do {
-                connection = acquireConnection();
-                statement = connection.createStatement();
+        try {
+            if (useSGEArrayJobs && jobId.contains(".")) {
+                jobNumber = Long.parseLong(jobId.substring(0, jobId.indexOf(".")));
+                taskNumber = Long.parseLong(jobId.substring(jobId.indexOf(".") + 1));
+            } else {
+                jobNumber = Long.parseLong(jobId);
+            }
+        } catch (NumberFormatException ex) {
+            // not a job of this cluster
+            return gji;
+        }
 
-                String query = "SELECT ju_end_time, ju_exit_status, ju_start_time "
-                        + "FROM sge_job, sge_job_usage "
-                        + "WHERE j_id=ju_parent "
-                        + "AND j_job_number=";
+        ARCOConnection connection = null;
+        PreparedStatement statement = null;
+        try {
+            ResultSet rs = null;
 
-                if (useSGEArrayJobs && jobId.contains(".")) {
-                    String j_id = jobId.substring(0, jobId.indexOf("."));
-                    String t_id = jobId.substring(jobId.indexOf(".") + 1);
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && rs == null; attempt++) {
+                connection = pool.acquire();
 
-                    query += j_id + " AND j_task_number=" + t_id;
-                } else {
-                    query += jobId;
+                if (connection == null) {
+                    break;
                 }
 
-                query += " ORDER BY ju_end_time DESC";
-
                 try {
-                    rs = statement.executeQuery(query);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    reconnectConnection(connection);
-                }
+                    if (taskNumber >= 0) {
+                        statement = connection.getStatement(ARCOConnection.TASK_QUERY);
+                        statement.setLong(2, taskNumber);
+                    } else {
+                        statement = connection.getStatement(ARCOConnection.JOB_QUERY);
+                    }
+                    statement.setLong(1, jobNumber);
 
-                if (rs == null) {
-                    statement.close();
+                    rs = executeQuery(statement);
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                    connection.release(statement);
+                    statement = null;
+                    pool.invalidate(connection);
+                    connection = null;
                 }
+            }
 
-            } while (rs == null);
+            if (rs == null) {
+                // ARCo could not be asked, the job is not known to be gone
+                gji.setState(GridJobInfo.STATE_UNKNOWN);
+                return gji;
+            }
 
 
             if (rs.next()) {
@@ -250,16 +375,186 @@ public class ARCODatabase {
             }
 
             rs.close();
-            statement.close();
 
         } catch (Exception ex) {
             ex.printStackTrace();
         } finally {
             if (connection != null) {
-                releaseConnection(connection);
+                connection.release(statement);
+                pool.release(connection);
             }
         }
 
         return gji;
     }
+
+    /**
+     * Looks up many jobs at once. The jobs are queried in chunks of
+     * BULK_QUERY_SIZE job numbers with a single IN list per chunk, and the
+     * rows are grouped per job with the same rule as the single lookup: the
+     * latest row with a real start and end time wins. Jobs which are not
+     * found are returned with STATE_NOT_FOUND. Returns null if ARCo is not
+     * configured.
+     */
+    public Map<String, GridJobInfo> getFinishedJobInfo(Collection<String> jobIds) {
+        if (!initialized) {
+            return null;
+        }
+
+        Map<String, GridJobInfo> ret = new HashMap<String, GridJobInfo>();
+        Map<String, GridJobInfo> cached = new HashMap<String, GridJobInfo>();
+        Set<Long> jobNumbers = new LinkedHashSet<Long>();
+
+        for (String jobId : jobIds) {
+            GridJobInfo gji = resultCache == null ? null : resultCache.get(jobId);
+
+            if (gji == null) {
+                gji = getReplicatedJobInfo(jobId);
+            }
+
+            if (gji != null) {
+                cached.put(jobId, gji);
+                continue;
+            }
+
+            gji = new GridJobInfo(jobId);
+            gji.setState(GridJobInfo.STATE_NOT_FOUND);
+            ret.put(jobId, gji);
+
+            String jobNumber = useSGEArrayJobs && jobId.contains(".") ? jobId.substring(0, jobId.indexOf(".")) : jobId;
+
+            try {
+                jobNumbers.add(Long.parseLong(jobNumber));
+            } catch (NumberFormatException ex) {
+                // not a job of this cluster, stays not found
+            }
+        }
+
+        List<Long> numbers = new ArrayList<Long>(jobNumbers);
+        Set<Long> failed = new HashSet<Long>();
+
+        for (int from = 0; from < numbers.size(); from += BULK_QUERY_SIZE) {
+            List<Long> chunk = numbers.subList(from, Math.min(from + BULK_QUERY_SIZE, numbers.size()));
+
+            if (!resolveChunk(chunk, ret)) {
+                failed.addAll(chunk);
+            }
+        }
+
+        // ARCo could not be asked about these, they are not known to be gone
+        if (!failed.isEmpty()) {
+            for (GridJobInfo gji : ret.values()) {
+                String jobId = gji.getJobId();
+                String jobNumber = jobId.contains(".") ? jobId.substring(0, jobId.indexOf(".")) : jobId;
+
+                try {
+                    if (failed.contains(Long.parseLong(jobNumber))) {
+                        gji.setState(GridJobInfo.STATE_UNKNOWN);
+                    }
+                } catch (NumberFormatException ex) {
+                    // not a job of this cluster
+                }
+            }
+        }
+
+        if (resultCache != null) {
+            for (GridJobInfo gji : ret.values()) {
+                resultCache.put(gji);
+            }
+        }
+
+        ret.putAll(cached);
+
+        return ret;
+    }
+
+    /**
+     * Resolves the jobs of one chunk. Returns false if ARCo could not be
+     * queried.
+     */
+    private boolean resolveChunk(List<Long> jobNumbers, Map<String, GridJobInfo> ret) {
+        ARCOConnection connection = null;
+        PreparedStatement statement = null;
+
+        try {
+            ResultSet rs = null;
+
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && rs == null; attempt++) {
+                connection = pool.acquire();
+
+                if (connection == null) {
+                    return false;
+                }
+
+                try {
+                    statement = connection.getBulkStatement(jobNumbers.size());
+
+                    // Unused places of the IN list repeat the last job number
+                    int size = ARCOConnection.getBulkSize(jobNumbers.size());
+                    long jobNumber = 0;
+
+                    for (int i = 0; i < size; i++) {
+                        if (i < jobNumbers.size()) {
+                            jobNumber = jobNumbers.get(i);
+                        }
+                        statement.setLong(i + 1, jobNumber);
+                    }
+
+                    rs = executeQuery(statement);
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                    connection.release(statement);
+                    statement = null;
+                    pool.invalidate(connection);
+                    connection = null;
+                }
+            }
+
+            if (rs == null) {
+                return false;
+            }
+
+            // There can be multiple rows for the same job, the first one
+            // with a real start and end time is taken
+            while (rs.next()) {
+                Timestamp end_timestamp = rs.getTimestamp("ju_end_time");
+                Timestamp start_timestamp = rs.getTimestamp("ju_start_time");
+
+                if (end_timestamp == null || start_timestamp == null
+                        || end_timestamp.getTime() <= 0 || start_timestamp.getTime() <= 0) {
+                    continue;
+                }
+
+                String jobNumber = rs.getString("j_job_number");
+
+                setFinished(ret.get(jobNumber), start_timestamp, end_timestamp, rs.getInt("ju_exit_status"));
+
+                if (useSGEArrayJobs) {
+                    setFinished(ret.get(jobNumber + "." + rs.getInt("j_task_number")),
+                            start_timestamp, end_timestamp, rs.getInt("ju_exit_status"));
+                }
+            }
+
+            rs.close();
+
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            if (connection != null) {
+                connection.release(statement);
+                pool.release(connection);
+            }
+        }
+
+        return true;
+    }
+
+    private static void setFinished(GridJobInfo gji, Timestamp start, Timestamp end, int exitStatus) {
+        if (gji != null && gji.getState() != GridJobInfo.STATE_FINISHED) {
+            gji.setState(GridJobInfo.STATE_FINISHED);
+            gji.setExitStatus(exitStatus);
+            gji.setStartTime(start.getTime());
+            gji.setFinishTime(end.getTime());
+        }
+    }
 }
@@ -0,0 +1,245 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import plgrid.GridJobInfo;
+
+/**
+ * Copies finished jobs from ARCo into a local FinishedJobIndex, so lookups
+ * do not have to wait for the shared ARCo database. New rows are fetched in
+ * pages ordered by end time and row id, starting after the last row copied.
+ * That position is kept in the header of the index, next to the jobs, so a
+ * restart continues where it stopped.
+ *
+ * Lookups are served locally once the first pass has caught up. Jobs which
+ * are not found locally may have finished after the last pass and are
+ * still looked up in ARCo by the caller.
+ */
+class ARCOReplicator extends Thread {
+
+    private static final int PAGE_SIZE = 5000;
+    private static final long CLEANUP_INTERVAL = 1000 * 60 * 30; // 30 minutes
+    private static final int MARK_END_TIME = 0;
+    private static final int MARK_ROW_ID = 1;
+    private final ARCODatabase database;
+    private final ARCOConnectionPool pool;
+    private final FinishedJobIndex index;
+    private final long window;
+    private final long interval;
+    private final FinishedJobRecord record = new FinishedJobRecord();
+    private volatile boolean caughtUp;
+    private volatile boolean shutdown;
+    private volatile long lastPassTime;
+    private long replicatedRows;
+
+    /**
+     * @param window milliseconds of history which is kept locally
+     * @param interval milliseconds between two passes
+     */
+    ARCOReplicator(ARCODatabase database, ARCOConnectionPool pool, FinishedJobIndex index, long window, long interval) {
+        super("ARCo replication");
+        setDaemon(true);
+
+        this.database = database;
+        this.pool = pool;
+        this.index = index;
+        this.window = window;
+        this.interval = interval;
+    }
+
+    @Override
+    public void run() {
+        long lastCleanupTime = 0;
+
+        // Start a new index at the beginning of the window
+        if (index.getSyncMark(MARK_END_TIME) == 0) {
+            index.setSyncMark(MARK_END_TIME, System.currentTimeMillis() - window);
+        }
+
+        while (!shutdown) {
+            long start = System.currentTimeMillis();
+            boolean complete = replicate();
+
+            if (complete) {
+                lastPassTime = System.currentTimeMillis() - start;
+
+                if (!caughtUp) {
+                    caughtUp = true;
+                    System.out.println("ARCo: Local copy is up to date with " + index.size() + " jobs.");
+                }
+            }
+
+            if (System.currentTimeMillis() - lastCleanupTime > CLEANUP_INTERVAL) {
+                int removed = index.removeOlderThan(System.currentTimeMillis() - window);
+
+                if (removed > 0) {
+                    System.out.println("ARCo: Removed " + removed + " old jobs from the local copy.");
+                }
+                lastCleanupTime = System.currentTimeMillis();
+            }
+
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+
+        index.close();
+    }
+
+    /**
+     * Copies pages of new rows until a page is not full. Returns false if
+     * ARCo could not be queried.
+     */
+    private boolean replicate() {
+        while (!shutdown) {
+            ARCOConnection connection = pool.acquire();
+
+            if (connection == null) {
+                return false;
+            }
+
+            PreparedStatement statement = null;
+            int rows = 0;
+
+            try {
+                long endTime = index.getSyncMark(MARK_END_TIME);
+                long rowId = index.getSyncMark(MARK_ROW_ID);
+
+                statement = connection.getStatement(ARCOConnection.SYNC_QUERY);
+                statement.setTimestamp(1, new Timestamp(endTime));
+                statement.setTimestamp(2, new Timestamp(endTime));
+                statement.setLong(3, rowId);
+                statement.setInt(4, PAGE_SIZE);
+
+                ResultSet rs = database.executeQuery(statement);
+
+                while (rs.next()) {
+                    Timestamp end = rs.getTimestamp("ju_end_time");
+                    Timestamp start = rs.getTimestamp("ju_start_time");
+
+                    rows++;
+                    endTime = end == null ? endTime : end.getTime();
+                    rowId = rs.getLong("ju_id");
+
+                    // Rows without a real start and end time are skipped, as
+                    // by the lookups in ARCo
+                    if (end != null && start != null && end.getTime() > 0 && start.getTime() > 0) {
+                        store(rs.getLong("j_job_number"), rs.getInt("j_task_number"),
+                                start.getTime(), end.getTime(), rs.getInt("ju_exit_status"));
+                    }
+                }
+
+                rs.close();
+
+                // The jobs are stored before the position is moved past them
+                index.setSyncMark(MARK_END_TIME, endTime);
+                index.setSyncMark(MARK_ROW_ID, rowId);
+                replicatedRows += rows;
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+                connection.release(statement);
+                pool.invalidate(connection);
+                return false;
+            }
+
+            connection.release(statement);
+            pool.release(connection);
+
+            if (rows < PAGE_SIZE) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Rows come in end time order, so a later row of the same job replaces
+    // the earlier one, as the latest row wins in ARCo lookups too
+    private void store(long jobNumber, int taskNumber, long startTime, long endTime, int exitStatus) {
+        record.job_number_value = jobNumber;
+        record.start_time = startTime;
+        record.end_time = endTime;
+        record.exit_status = exitStatus;
+        record.ru_utime_value = 0;
+
+        record.task_number = taskNumber;
+        index.put(record);
+
+        // A job id without task matches any task of the job
+        if (taskNumber != 0) {
+            record.task_number = 0;
+            index.put(record);
+        }
+    }
+
+    /**
+     * Returns the job from the local copy, or null if it is not there or the
+     * copy has not caught up yet.
+     */
+    GridJobInfo get(String jobId) {
+        if (!caughtUp) {
+            return null;
+        }
+
+        GridJobInfo gji = index.get(jobId);
+
+        return gji.getState() == GridJobInfo.STATE_FINISHED ? gji : null;
+    }
+
+    boolean isCaughtUp() {
+        return caughtUp;
+    }
+
+    /**
+     * Returns the end time of the last row copied.
+     */
+    long getWatermark() {
+        return index.getSyncMark(MARK_END_TIME);
+    }
+
+    /**
+     * Returns the duration of the last complete pass in milliseconds.
+     */
+    long getLastPassTime() {
+        return lastPassTime;
+    }
+
+    @Override
+    public String toString() {
+        return index.size() + " jobs, watermark " + new java.util.Date(getWatermark()) + ", " + replicatedRows
+                + " rows copied, last pass " + lastPassTime + " ms" + (caughtUp ? "" : ", catching up");
+    }
+
+    void shutdown() {
+        shutdown = true;
+        caughtUp = false;
+        interrupt();
+    }
+}
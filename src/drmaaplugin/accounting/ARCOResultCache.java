@@ -0,0 +1,244 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import plgrid.GridJobInfo;
+
+/**
+ * Cache in front of ARCo. A job which ARCo reported as finished with a real
+ * start and end time never changes, so these results are kept until the
+ * memory budget forces them out, least recently used first. The cache is
+ * split into stripes with their own lock and LRU order, so concurrent
+ * lookups rarely wait for each other.
+ *
+ * Jobs ARCo did not know are remembered separately for a short time only,
+ * as they may show up in ARCo any moment.
+ */
+class ARCOResultCache {
+
+    // Rough heap use of one finished entry: map entry, boxed key and result
+    static final int ENTRY_SIZE = 112;
+    private static final int STRIPES = 16;
+    private static final int MAX_NOT_FOUND_ENTRIES = 64 * 1024;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ConcurrentHashMap<Long, Long> notFound = new ConcurrentHashMap<Long, Long>();
+    private final long notFoundTTL;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong notFoundHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param memoryBudget bytes the finished entries may use
+     * @param notFoundTTL milliseconds a NOT_FOUND answer is reused
+     */
+    ARCOResultCache(long memoryBudget, long notFoundTTL) {
+        int entriesPerStripe = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / ENTRY_SIZE / STRIPES));
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(entriesPerStripe);
+        }
+
+        this.notFoundTTL = notFoundTTL;
+    }
+
+    private Stripe getStripe(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+
+        return stripes[(int) (h >>> 60)];
+    }
+
+    /**
+     * Returns the cached answer for the job, or null if ARCo has to be
+     * asked.
+     */
+    GridJobInfo get(String jobId) {
+        long key = FinishedJobIndex.toKey(jobId);
+
+        if (key == 0) {
+            return null;
+        }
+
+        Result result = getStripe(key).get(key);
+
+        if (result != null) {
+            hits.incrementAndGet();
+
+            GridJobInfo gji = new GridJobInfo(jobId);
+            gji.setState(GridJobInfo.STATE_FINISHED);
+            gji.setStartTime(result.startTime);
+            gji.setFinishTime(result.endTime);
+            gji.setExitStatus(result.exitStatus);
+            return gji;
+        }
+
+        Long expires = notFound.get(key);
+
+        if (expires != null) {
+            if (expires > System.currentTimeMillis()) {
+                notFoundHits.incrementAndGet();
+
+                GridJobInfo gji = new GridJobInfo(jobId);
+                gji.setState(GridJobInfo.STATE_NOT_FOUND);
+                return gji;
+            }
+            notFound.remove(key, expires);
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remembers an answer of ARCo. Only finished and not found jobs are
+     * cached.
+     */
+    void put(GridJobInfo gji) {
+        long key = FinishedJobIndex.toKey(gji.getJobId());
+
+        if (key == 0) {
+            return;
+        }
+
+        if (gji.getState() == GridJobInfo.STATE_FINISHED) {
+            notFound.remove(key);
+
+            if (getStripe(key).put(key, new Result(gji.getStartTime(), gji.getFinishTime(), gji.getExitStatus()))) {
+                evictions.incrementAndGet();
+            }
+        } else if (gji.getState() == GridJobInfo.STATE_NOT_FOUND && notFoundTTL > 0) {
+            long now = System.currentTimeMillis();
+
+            if (notFound.size() >= MAX_NOT_FOUND_ENTRIES) {
+                purgeNotFound(now);
+            }
+
+            if (notFound.size() < MAX_NOT_FOUND_ENTRIES) {
+                notFound.put(key, now + notFoundTTL);
+            }
+        }
+    }
+
+    private void purgeNotFound(long now) {
+        Iterator<Map.Entry<Long, Long>> it = notFound.entrySet().iterator();
+
+        while (it.hasNext()) {
+            if (it.next().getValue() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the estimated heap use of the finished entries in bytes.
+     */
+    long getMemoryUse() {
+        return (long) size() * ENTRY_SIZE;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getNotFoundHits() {
+        return notFoundHits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return size() + " finished (" + getMemoryUse() / 1024 + " KB), " + notFound.size() + " not found, "
+                + hits.get() + " hits, " + notFoundHits.get() + " not found hits, " + misses.get() + " misses, "
+                + evictions.get() + " evictions";
+    }
+
+    private static class Result {
+
+        final long startTime;
+        final long endTime;
+        final int exitStatus;
+
+        Result(long startTime, long endTime, int exitStatus) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.exitStatus = exitStatus;
+        }
+    }
+
+    private static class Stripe {
+
+        private final LinkedHashMap<Long, Result> map;
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            this.maxEntries = maxEntries;
+            map = new LinkedHashMap<Long, Result>(16, 0.75f, true);
+        }
+
+        synchronized Result get(long key) {
+            return map.get(key);
+        }
+
+        /**
+         * Returns true if the least recently used entry was evicted.
+         */
+        synchronized boolean put(long key, Result result) {
+            map.put(key, result);
+
+            if (map.size() > maxEntries) {
+                Iterator<Long> it = map.keySet().iterator();
+                it.next();
+                it.remove();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+}
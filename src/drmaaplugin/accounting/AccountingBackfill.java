@@ -0,0 +1,522 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads the finished jobs of all rotated accounting files (accounting.0.gz,
+ * accounting.1.gz, ...) when the plugin starts without any history. The
+ * archives are decoded in parallel on a fork join pool, one archive per
+ * task, keeping only jobs which ended after the cutoff time. Records are
+ * collected in primitive arrays of at most MAX_RUN_SIZE records, and every
+ * full array is sorted by end time and written to a temporary file. next
+ * merges these runs, reading each one back a block at a time, so the
+ * records come out in end time order.
+ *
+ * Memory use does not depend on the number of jobs in the backfill window:
+ * while decoding every task holds one run, while merging every run holds
+ * one block. Archives which were last modified before the cutoff time
+ * cannot contain newer jobs and are not read at all.
+ */
+class AccountingBackfill {
+
+    private static final int MAX_ARCHIVES = 1000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL = 10000;
+    private static final int MAX_RUN_SIZE = 256 * 1024;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int RECORD_SIZE = 32; // bytes in a run file
+    private final List<File> archives;
+    private final long cutOffTime;
+    private final AtomicInteger decodedArchives = new AtomicInteger();
+    private final AtomicLong decodedRecords = new AtomicLong();
+    private final AtomicLong keptRecords = new AtomicLong();
+    private final ConcurrentLinkedQueue<File> runFiles = new ConcurrentLinkedQueue<File>();
+    private PriorityQueue<RecordRun> merge;
+
+    /**
+     * @param filepath path of the accounting file, archives are looked up
+     * next to it
+     * @param cutOffTime jobs which ended before this time are skipped
+     */
+    AccountingBackfill(String filepath, long cutOffTime) {
+        this.cutOffTime = cutOffTime;
+
+        archives = new ArrayList<File>();
+
+        for (int i = 0; i < MAX_ARCHIVES; i++) {
+            File f = new File(filepath + "." + i + ".gz");
+
+            if (!f.exists()) {
+                f = new File(filepath + "." + i);
+            }
+
+            if (!f.exists()) {
+                break;
+            }
+
+            // The archive was last written when it got rotated, which is
+            // after the last job in it ended
+            if (f.lastModified() >= cutOffTime) {
+                archives.add(f);
+            }
+        }
+    }
+
+    int getNumArchives() {
+        return archives.size();
+    }
+
+    /**
+     * Decodes all archives in parallel and prepares the merge. Prints the
+     * progress while the archives are decoded.
+     */
+    void load(int parallelism) throws InterruptedException {
+        merge = new PriorityQueue<RecordRun>();
+
+        if (archives.isEmpty()) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, archives.size())));
+
+        try {
+            ForkJoinTask<List<RecordRun>> task = pool.submit(new DecodeTask(archives));
+            List<RecordRun> runs;
+
+            while (true) {
+                try {
+                    runs = task.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException ex) {
+                    printProgress(startTime);
+                }
+            }
+
+            for (RecordRun run : runs) {
+                if (run.advance()) {
+                    merge.add(run);
+                }
+            }
+        } catch (ExecutionException ex) {
+            ex.printStackTrace();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        printProgress(startTime);
+    }
+
+    private void printProgress(long startTime) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        long records = decodedRecords.get();
+
+        System.out.println("SGE Accounting: Backfill decoded " + decodedArchives.get() + "/" + archives.size()
+                + " archives, " + records + " records (" + records * 1000 / elapsed + " records/s), kept "
+                + keptRecords.get());
+    }
+
+    /**
+     * Fills the record with the job which ended next. Returns false when all
+     * records were returned.
+     */
+    boolean next(FinishedJobRecord r) {
+        RecordRun run = merge.poll();
+
+        if (run == null) {
+            return false;
+        }
+
+        run.get(r);
+
+        try {
+            if (run.advance()) {
+                merge.add(run);
+            }
+        } catch (IOException ex) {
+            // The rest of this run is lost, the other runs go on
+            System.err.println("SGE Accounting: Unable to read backfill run " + run.file);
+            ex.printStackTrace();
+            run.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes the temporary run files which are left.
+     */
+    void close() {
+        if (merge != null) {
+            for (RecordRun run : merge) {
+                run.close();
+            }
+            merge.clear();
+        }
+
+        for (File f : runFiles) {
+            f.delete();
+        }
+        runFiles.clear();
+    }
+
+    /**
+     * Decodes the archives of its range, splitting the range until every
+     * task decodes a single archive.
+     */
+    private class DecodeTask extends RecursiveTask<List<RecordRun>> {
+
+        private static final long serialVersionUID = 1L;
+        private final List<File> files;
+
+        DecodeTask(List<File> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected List<RecordRun> compute() {
+            if (files.size() > 1) {
+                int mid = files.size() / 2;
+                DecodeTask left = new DecodeTask(files.subList(0, mid));
+                DecodeTask right = new DecodeTask(files.subList(mid, files.size()));
+
+                left.fork();
+
+                List<RecordRun> ret = new ArrayList<RecordRun>(right.compute());
+                ret.addAll(left.join());
+                return ret;
+            }
+
+            List<RecordRun> runs = new ArrayList<RecordRun>();
+
+            try {
+                decode(files.get(0), runs);
+            } catch (IOException ex) {
+                System.err.println("SGE Accounting: Unable to read " + files.get(0));
+                ex.printStackTrace();
+            }
+
+            decodedArchives.incrementAndGet();
+
+            return runs;
+        }
+    }
+
+    /**
+     * Decodes one archive into sorted runs on disk.
+     */
+    private void decode(File f, List<RecordRun> runs) throws IOException {
+        InputStream in = new FileInputStream(f);
+
+        if (f.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+
+        // Decoders keep state, every task needs its own
+        AccountingLineReader reader = new AccountingLineReader(in, 0, new FinishedJobRecordDecoder());
+        FinishedJobRecord r = new FinishedJobRecord();
+        RecordRun run = new RecordRun(BLOCK_SIZE);
+        long decoded = 0;
+        long kept = 0;
+
+        try {
+            while (reader.next(r, Long.MIN_VALUE)) {
+                decoded++;
+
+                if (r.endedAfter(cutOffTime)) {
+                    run.add(r);
+                    kept++;
+
+                    if (run.size == MAX_RUN_SIZE) {
+                        runs.add(spill(run));
+                    }
+                }
+
+                if ((decoded & 0xffff) == 0) {
+                    decodedRecords.addAndGet(0x10000);
+                }
+            }
+
+            if (run.size > 0) {
+                runs.add(spill(run));
+            }
+        } finally {
+            reader.close();
+        }
+
+        decodedRecords.addAndGet(decoded & 0xffff);
+        keptRecords.addAndGet(kept);
+    }
+
+    /**
+     * Sorts the records of the run and writes them to a temporary file.
+     * Returns a run which reads them back, the given run is emptied.
+     */
+    private RecordRun spill(RecordRun run) throws IOException {
+        File f = File.createTempFile("accounting", ".run");
+
+        f.deleteOnExit();
+        runFiles.add(f);
+
+        run.sort();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE));
+        try {
+            for (int i = 0; i < run.size; i++) {
+                out.writeLong(run.jobNumbers[i]);
+                out.writeInt(run.taskNumbers[i]);
+                out.writeLong(run.startTimes[i]);
+                out.writeLong(run.endTimes[i]);
+                out.writeInt(run.exitStatuses[i]);
+            }
+        } finally {
+            out.close();
+        }
+
+        RecordRun spilled = new RecordRun(BLOCK_SIZE);
+
+        spilled.file = f;
+        spilled.remaining = run.size;
+        run.size = 0;
+
+        return spilled;
+    }
+
+    /**
+     * Records in primitive arrays, ordered by end time after sort was called.
+     * A run which was written to a file holds one block of it at a time.
+     * Compared by the end time of the current record.
+     */
+    private static class RecordRun implements Comparable<RecordRun> {
+
+        long[] jobNumbers;
+        int[] taskNumbers;
+        long[] startTimes;
+        long[] endTimes;
+        int[] exitStatuses;
+        int size;
+        int position = -1;
+        File file;
+        DataInputStream in;
+        long remaining;
+
+        RecordRun(int capacity) {
+            jobNumbers = new long[capacity];
+            taskNumbers = new int[capacity];
+            startTimes = new long[capacity];
+            endTimes = new long[capacity];
+            exitStatuses = new int[capacity];
+        }
+
+        void add(FinishedJobRecord r) {
+            if (size == endTimes.length) {
+                int n = size * 2;
+
+                jobNumbers = Arrays.copyOf(jobNumbers, n);
+                taskNumbers = Arrays.copyOf(taskNumbers, n);
+                startTimes = Arrays.copyOf(startTimes, n);
+                endTimes = Arrays.copyOf(endTimes, n);
+                exitStatuses = Arrays.copyOf(exitStatuses, n);
+            }
+
+            jobNumbers[size] = r.job_number_value;
+            taskNumbers[size] = r.task_number;
+            startTimes[size] = r.start_time;
+            endTimes[size] = r.getStoredEndTime();
+            exitStatuses[size] = r.exit_status;
+            size++;
+        }
+
+        /**
+         * Fills the record with the current record of the run.
+         */
+        void get(FinishedJobRecord r) {
+            r.job_number_value = jobNumbers[position];
+            r.task_number = taskNumbers[position];
+            r.start_time = startTimes[position];
+            r.end_time = endTimes[position];
+            r.exit_status = exitStatuses[position];
+            // end time is adjusted already
+            r.ru_utime_value = 0;
+        }
+
+        /**
+         * Moves to the next record, reading the next block from the file if
+         * needed. Returns false and deletes the file at the end of the run.
+         */
+        boolean advance() throws IOException {
+            if (++position < size) {
+                return true;
+            }
+
+            if (remaining == 0) {
+                close();
+                return false;
+            }
+
+            if (in == null) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                        BLOCK_SIZE * RECORD_SIZE));
+            }
+
+            size = (int) Math.min(remaining, endTimes.length);
+
+            try {
+                for (int i = 0; i < size; i++) {
+                    jobNumbers[i] = in.readLong();
+                    taskNumbers[i] = in.readInt();
+                    startTimes[i] = in.readLong();
+                    endTimes[i] = in.readLong();
+                    exitStatuses[i] = in.readInt();
+                }
+            } catch (EOFException ex) {
+                size = 0;
+                throw ex;
+            }
+
+            remaining -= size;
+            position = 0;
+
+            return true;
+        }
+
+        void close() {
+            try {
+                if (in != null) {
+                    in.close();
+                    in = null;
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        /**
+         * Sorts the records by end time, keeping the file order of records
+         * which ended at the same time. Accounting files are written when
+         * jobs finish, so usually there is nothing to do.
+         */
+        void sort() {
+            boolean sorted = true;
+
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = endTimes[i - 1] <= endTimes[i];
+            }
+
+            if (sorted) {
+                return;
+            }
+
+            // Bottom up merge sort of the record indices
+            int[] order = new int[size];
+            int[] tmp = new int[size];
+
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+
+            for (int width = 1; width < size; width *= 2) {
+                for (int lo = 0; lo < size; lo += 2 * width) {
+                    int mid = Math.min(lo + width, size);
+                    int hi = Math.min(lo + 2 * width, size);
+                    int i = lo;
+                    int j = mid;
+
+                    for (int k = lo; k < hi; k++) {
+                        if (i < mid && (j >= hi || endTimes[order[i]] <= endTimes[order[j]])) {
+                            tmp[k] = order[i++];
+                        } else {
+                            tmp[k] = order[j++];
+                        }
+                    }
+                }
+
+                int[] swap = order;
+                order = tmp;
+                tmp = swap;
+            }
+
+            long[] jobs = new long[size];
+            int[] tasks = new int[size];
+            long[] starts = new long[size];
+            long[] ends = new long[size];
+            int[] exits = new int[size];
+
+            for (int i = 0; i < size; i++) {
+                int o = order[i];
+
+                jobs[i] = jobNumbers[o];
+                tasks[i] = taskNumbers[o];
+                starts[i] = startTimes[o];
+                ends[i] = endTimes[o];
+                exits[i] = exitStatuses[o];
+            }
+
+            jobNumbers = jobs;
+            taskNumbers = tasks;
+            startTimes = starts;
+            endTimes = ends;
+            exitStatuses = exits;
+        }
+
+        @Override
+        public int compareTo(RecordRun o) {
+            long a = endTimes[position];
+            long b = o.endTimes[o.position];
+
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for changes of one file by watching its directory with a
+ * WatchService, so the accounting file can be tailed without waking up when
+ * nothing happened. Some file systems (NFS in particular) do not deliver
+ * events for changes made by other hosts, so waits always end after a
+ * timeout and the caller checks the file anyway.
+ */
+class AccountingFileWatcher {
+
+    private final WatchService watchService;
+    private final String fileName;
+
+    AccountingFileWatcher(File file) throws IOException {
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+
+        fileName = file.getName();
+        watchService = FileSystems.getDefault().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * Waits until the file was created, modified, removed or renamed, or the
+     * timeout passed. Returns true if a change of the file was seen.
+     */
+    boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                WatchKey key = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+
+                if (key == null) {
+                    return false;
+                }
+
+                boolean changed = false;
+
+                // Take everything which is pending, so a burst of appends
+                // results in a single wake up
+                while (key != null) {
+                    changed |= isChanged(key);
+                    key.reset();
+                    key = watchService.poll();
+                }
+
+                if (changed) {
+                    return true;
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            return false;
+        }
+    }
+
+    private boolean isChanged(WatchKey key) {
+        boolean changed = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if (fileName.equals(String.valueOf(event.context()))) {
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    void close() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
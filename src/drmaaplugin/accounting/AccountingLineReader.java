@@ -0,0 +1,181 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.io.InputStream;
+
+/**
+ * Reads complete lines from an accounting file which may still be growing
+ * and keeps track of the byte offset after the last returned line.
+ *
+ * Unlike BufferedReader, a line which is still being written (no line
+ * break yet) is not returned. It stays buffered and is returned once the
+ * rest of it has been appended, so the offset always points to the start
+ * of a record and can be stored to resume from later.
+ */
+public class AccountingLineReader implements AccountingRecordReader {
+
+    private final InputStream in;
+    private final FinishedJobRecordDecoder decoder;
+    private byte[] buffer = new byte[64 * 1024];
+    private ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private int start;
+    private int end;
+    private long offset;
+
+    /**
+     * @param in stream positioned at the given offset
+     * @param offset byte offset of the stream's position in the file
+     */
+    public AccountingLineReader(InputStream in, long offset) {
+        this(in, offset, new FinishedJobRecordDecoder());
+    }
+
+    /**
+     * @param in stream positioned at the given offset
+     * @param offset byte offset of the stream's position in the file
+     * @param decoder decoder for the fields the caller needs, used by next
+     */
+    public AccountingLineReader(InputStream in, long offset, FinishedJobRecordDecoder decoder) {
+        this.in = in;
+        this.offset = offset;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Returns the next complete line without its line break, or null if no
+     * complete line is available yet.
+     */
+    public String readLine() throws IOException {
+        int i = findLineBreak();
+
+        if (i < 0) {
+            return null;
+        }
+
+        int lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+        String line = new String(buffer, start, lineEnd - start, "ISO-8859-1");
+
+        offset += i + 1 - start;
+        start = i + 1;
+
+        return line;
+    }
+
+    // Returns the index of the line break which ends the line at start,
+    // reading more data as needed, or -1 if the line is not complete yet
+    private int findLineBreak() throws IOException {
+        int scanFrom = start;
+
+        while (true) {
+            for (int i = scanFrom; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+
+            scanFrom = end - start;
+
+            if (!fill()) {
+                return -1;
+            }
+
+            // the buffer got compacted, continue scanning after the old data
+            scanFrom += start;
+        }
+    }
+
+    // Moves the incomplete line to the front and reads more data after it
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+
+        if (end == buffer.length) {
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, end);
+            buffer = larger;
+            wrapped = ByteBuffer.wrap(buffer);
+        }
+
+        int n = in.read(buffer, end, buffer.length - end);
+
+        if (n <= 0) {
+            return false;
+        }
+
+        end += n;
+        return true;
+    }
+
+    /**
+     * Decodes the next record directly from the read buffer, without
+     * creating a String for the line.
+     */
+    @Override
+    public boolean next(FinishedJobRecord r, long minEndTime) throws IOException {
+        int i;
+
+        while ((i = findLineBreak()) >= 0) {
+            int lineStart = start;
+            int lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+
+            offset += i + 1 - start;
+            start = i + 1;
+
+            if (lineEnd == lineStart || buffer[lineStart] == '#') {
+                continue;
+            }
+
+            if (!decoder.decode(wrapped, lineStart, lineEnd, r)) {
+                System.err.println("SGE Accounting: Unable to parse record: "
+                        + new String(buffer, lineStart, lineEnd - lineStart, "ISO-8859-1"));
+                continue;
+            }
+
+            if (r.endedAfter(minEndTime)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the byte offset right after the last line returned.
+     */
+    @Override
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
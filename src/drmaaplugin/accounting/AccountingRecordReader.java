@@ -0,0 +1,47 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.io.IOException;
+
+/**
+ * Reads finished job records from an accounting file which may still be
+ * growing, keeping track of the byte offset reached.
+ */
+public interface AccountingRecordReader {
+
+    /**
+     * Fills the given record with the next complete record of a job which
+     * finished at or after minEndTime, or never started. Comments, malformed
+     * lines and older jobs are skipped. Returns false if no such record is available yet.
+     */
+    boolean next(FinishedJobRecord r, long minEndTime) throws IOException;
+
+    /**
+     * Returns the byte offset right after the last record read or skipped.
+     */
+    long getOffset();
+
+    void close() throws IOException;
+}
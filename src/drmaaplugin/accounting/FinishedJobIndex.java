@@ -0,0 +1,419 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import plgrid.GridJobInfo;
+
+/**
+ * Finished job store which keeps jobs in an open addressing hash table in a
+ * memory mapped file, outside of the Java heap. Jobs are keyed by their job
+ * and task number packed into one long, and every slot has a fixed width:
+ *
+ * <pre>
+ * 0  key (job number &lt;&lt; 32 | task number, 0 marks an empty slot)
+ * 8  start time
+ * 16 end time, or the time the job was stored if it never ended
+ * 24 exit status
+ * 28 flags, NO_END_TIME if the job never ended
+ * </pre>
+ *
+ * Jobs which never started, because they were deleted while queued or
+ * failed before, have no end time. They are kept for the retention window
+ * from the time they were stored and reported without a finish time.
+ *
+ * Collisions are resolved by linear probing and entries are removed by
+ * shifting the following entries back, so the table never fills up with
+ * deleted markers. The table doubles in size when it is three quarters full.
+ * Because the table lives in a file it survives restarts of the plugin.
+ */
+public class FinishedJobIndex {
+
+    private static final long MAGIC = 0x4c4f4e494a4f4253L;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final int MIN_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 25; // 1 GB of slots
+    private static final int KEY = 0;
+    private static final int START_TIME = 8;
+    private static final int END_TIME = 16;
+    private static final int EXIT_STATUS = 24;
+    private static final int FLAGS = 28;
+    private static final int NO_END_TIME = 1;
+    private static final int SYNC_MARKS = 16; // 4 longs in the header
+    private final File file;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private RandomAccessFile raf;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int mask;
+    private int size;
+
+    /**
+     * Opens the index stored in the given file, or creates an empty one.
+     */
+    public FinishedJobIndex(File file) throws IOException {
+        this.file = file;
+
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+
+        raf = new RandomAccessFile(file, "rw");
+
+        if (exists) {
+            // Read without a mapping, the file may be truncated below
+            long magic = raf.readLong();
+            int cap = raf.readInt();
+
+            if (magic == MAGIC && Integer.bitCount(cap) == 1
+                    && raf.length() == HEADER_SIZE + (long) cap * SLOT_SIZE) {
+                map(cap);
+                size = table.getInt(12);
+                return;
+            }
+
+            System.err.println("SGE Accounting: Index " + file + " is damaged, starting with an empty one.");
+        }
+
+        raf.setLength(0);
+        map(MIN_CAPACITY);
+    }
+
+    private void map(int cap) throws IOException {
+        long length = HEADER_SIZE + (long) cap * SLOT_SIZE;
+
+        raf.setLength(length);
+        table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        table.putLong(0, MAGIC);
+        table.putInt(8, cap);
+        capacity = cap;
+        mask = cap - 1;
+    }
+
+    /**
+     * Packs a job id of the form "job" or "job.task" into a key. Returns 0
+     * for ids which are not numeric.
+     */
+    static long toKey(String jobId) {
+        int dot = jobId.indexOf('.');
+
+        try {
+            long job = Long.parseLong(dot < 0 ? jobId : jobId.substring(0, dot));
+            long task = dot < 0 ? 0 : Long.parseLong(jobId.substring(dot + 1));
+
+            if (job <= 0 || job > 0xffffffffL || task < 0 || task > 0xffffffffL) {
+                return 0;
+            }
+            return job << 32 | task;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the slot which holds the key, or the empty slot where it would
+     * be inserted.
+     */
+    private int find(long key) {
+        int slot = hash(key) & mask;
+
+        while (true) {
+            long k = table.getLong(offset(slot) + KEY);
+
+            if (k == key || k == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Stores the job of the record, replacing an earlier entry of the same
+     * job.
+     */
+    public void put(FinishedJobRecord r) {
+        if (r.job_number_value <= 0 || r.job_number_value > 0xffffffffL) {
+            return;
+        }
+
+        long key = r.job_number_value << 32 | (r.task_number & 0xffffffffL);
+
+        lock.writeLock().lock();
+        try {
+            int slot = find(key);
+            int off = offset(slot);
+
+            if (table.getLong(off + KEY) == 0) {
+                if ((size + 1) * 4L > capacity * 3L && capacity < MAX_CAPACITY) {
+                    resize(capacity * 2);
+                    off = offset(find(key));
+                } else if (size + 1 >= capacity) {
+                    System.err.println("SGE Accounting: Index is full, dropping job " + r.job_number_value);
+                    return;
+                }
+                size++;
+                table.putInt(12, size);
+            }
+
+            table.putLong(off + START_TIME, r.start_time);
+
+            if (r.end_time > 0) {
+                table.putLong(off + END_TIME, r.getStoredEndTime());
+                table.putInt(off + FLAGS, 0);
+            } else {
+                table.putLong(off + END_TIME, System.currentTimeMillis());
+                table.putInt(off + FLAGS, NO_END_TIME);
+            }
+
+            table.putInt(off + EXIT_STATUS, r.exit_status);
+            table.putLong(off + KEY, key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the job with the given id, or a job with STATE_NOT_FOUND if the
+     * index does not have it.
+     */
+    public GridJobInfo get(String jobId) {
+        GridJobInfo gji = new GridJobInfo(jobId);
+        gji.setState(GridJobInfo.STATE_NOT_FOUND);
+
+        long key = toKey(jobId);
+
+        if (key == 0) {
+            return gji;
+        }
+
+        lock.readLock().lock();
+        try {
+            int off = offset(find(key));
+
+            if (table.getLong(off + KEY) == key) {
+                gji.setState(GridJobInfo.STATE_FINISHED);
+                gji.setStartTime(table.getLong(off + START_TIME));
+                gji.setFinishTime((table.getInt(off + FLAGS) & NO_END_TIME) != 0 ? 0 : table.getLong(off + END_TIME));
+                gji.setExitStatus(table.getInt(off + EXIT_STATUS));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return gji;
+    }
+
+    /**
+     * Removes all jobs which ended before the given time, or were stored
+     * before it if they never ended. Returns the number of removed jobs.
+     */
+    public int removeOlderThan(long cutOffTime) {
+        int removed = 0;
+
+        lock.writeLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                int off = offset(slot);
+
+                // The slot is checked again after a removal, as the
+                // following entry may have been shifted into it
+                while (table.getLong(off + KEY) != 0 && table.getLong(off + END_TIME) < cutOffTime) {
+                    remove(slot);
+                    removed++;
+                }
+            }
+
+            size -= removed;
+            table.putInt(12, size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        return removed;
+    }
+
+    /**
+     * Empties the slot and moves back the following entries of the probe
+     * sequence which would not be found otherwise.
+     */
+    private void remove(int hole) {
+        int slot = hole;
+
+        while (true) {
+            slot = (slot + 1) & mask;
+
+            int off = offset(slot);
+            long key = table.getLong(off + KEY);
+
+            if (key == 0) {
+                break;
+            }
+
+            int home = hash(key) & mask;
+
+            // Move the entry if its home slot is not cyclically between the
+            // hole and its current slot
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                copySlot(off, offset(hole));
+                hole = slot;
+            }
+        }
+
+        table.putLong(offset(hole) + KEY, 0);
+    }
+
+    private void copySlot(int from, int to) {
+        table.putLong(to + START_TIME, table.getLong(from + START_TIME));
+        table.putLong(to + END_TIME, table.getLong(from + END_TIME));
+        table.putInt(to + EXIT_STATUS, table.getInt(from + EXIT_STATUS));
+        table.putInt(to + FLAGS, table.getInt(from + FLAGS));
+        table.putLong(to + KEY, table.getLong(from + KEY));
+    }
+
+    /**
+     * Rehashes all entries into a table of the new capacity. The entries are
+     * copied to the heap first, as the new table covers the old slots. The
+     * file only grows, a mapped file cannot be truncated on every platform,
+     * so the old mapping stays valid until it is collected.
+     */
+    private void resize(int newCapacity) {
+        long[] keys = new long[size];
+        long[] startTimes = new long[size];
+        long[] endTimes = new long[size];
+        int[] exitStatuses = new int[size];
+        int[] flags = new int[size];
+        int n = 0;
+
+        for (int slot = 0; slot < capacity; slot++) {
+            int off = offset(slot);
+            long key = table.getLong(off + KEY);
+
+            if (key != 0) {
+                keys[n] = key;
+                startTimes[n] = table.getLong(off + START_TIME);
+                endTimes[n] = table.getLong(off + END_TIME);
+                exitStatuses[n] = table.getInt(off + EXIT_STATUS);
+                flags[n] = table.getInt(off + FLAGS);
+                n++;
+            }
+        }
+
+        int oldCapacity = capacity;
+
+        try {
+            map(newCapacity);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to grow finished job index " + file, ex);
+        }
+
+        // The header with the sync marks stays, the old slots are emptied
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            table.putLong(offset(slot) + KEY, 0);
+        }
+
+        for (int i = 0; i < n; i++) {
+            int off = offset(find(keys[i]));
+
+            table.putLong(off + START_TIME, startTimes[i]);
+            table.putLong(off + END_TIME, endTimes[i]);
+            table.putInt(off + EXIT_STATUS, exitStatuses[i]);
+            table.putInt(off + FLAGS, flags[i]);
+            table.putLong(off + KEY, keys[i]);
+        }
+
+        table.putInt(12, n);
+
+        System.out.println("SGE Accounting: Grew finished job index to " + newCapacity + " slots.");
+    }
+
+    /**
+     * Returns one of the values kept in the header for the process which
+     * fills the index, for example how far a source has been read.
+     * Index 0 to 3 are available.
+     */
+    public long getSyncMark(int i) {
+        lock.readLock().lock();
+        try {
+            return table.getLong(SYNC_MARKS + i * 8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void setSyncMark(int i, long value) {
+        lock.writeLock().lock();
+        try {
+            table.putLong(SYNC_MARKS + i * 8, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of jobs in the index.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of slots of the table.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes the table to disk and closes the file.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            table.force();
+            raf.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -76,8 +76,64 @@ public class FinishedJobRecord {
     public String maxvmem;          // token 43
     public String arid;             // token 44
     public String ar_submission_time;// token 45
+    // Numeric values of string fields, filled by FinishedJobRecordDecoder
+    // for the fields it was asked to decode
+    public long job_number_value;   // token 6
+    public double ru_wallclock_value;// token 14
+    public double ru_utime_value;   // token 15
+    public double ru_stime_value;   // token 16
+    public double ru_maxrss_value;  // token 17
+    public int slots_value;         // token 35
+    public double cpu_value;        // token 37
+    public double mem_value;        // token 38
+    public double io_value;         // token 39
+    public double iow_value;        // token 41
+    public double maxvmem_value;    // token 43
+
+    public FinishedJobRecord() {
+    }
 
     public FinishedJobRecord(String str) {
+        parse(str);
+    }
+
+    /**
+     * Returns the end time which is stored for this job. Jobs which finished
+     * within a second of starting get their CPU time added, so they do not
+     * look like they never ran.
+     */
+    public long getStoredEndTime() {
+        if (start_time == end_time && ru_utime_value > 0) {
+            return end_time + (long) (ru_utime_value * 1000);
+        }
+        return end_time;
+    }
+
+    /**
+     * Returns true if the job ended at or after the given time. Jobs which
+     * failed before they started have no end time and are always kept, their
+     * exit status is what Pipeline asks for.
+     */
+    public boolean endedAfter(long minEndTime) {
+        return end_time <= 0 || end_time >= minEndTime;
+    }
+
+    /**
+     * Fills this record from one line of the accounting file, so a record can
+     * be reused for many lines.
+     */
+    public void parse(String str) {
+        qname = null;
+        job_number = null;
+        job_number_value = 0;
+        task_number = 0;
+        start_time = 0;
+        end_time = 0;
+        exit_status = 0;
+        ru_utime = null;
+        ru_utime_value = 0;
+        ru_stime = null;
+
         StringTokenizer st = new StringTokenizer(str, ":");
 
         int tokNumber = 0;
@@ -94,6 +150,7 @@ public class FinishedJobRecord {
                     break;
                 case 6:
                     job_number = val;
+                    job_number_value = Long.parseLong(val);
                     break;
                 case 36:
                     task_number = Integer.parseInt(val);
@@ -109,6 +166,7 @@ public class FinishedJobRecord {
                     break;
                 case 15:
                     ru_utime = val;
+                    ru_utime_value = Double.parseDouble(val);
                     break;
                 case 16:
                     ru_stime = val;
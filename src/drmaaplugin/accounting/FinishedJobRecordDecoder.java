@@ -0,0 +1,321 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes selected fields of accounting records into a reusable
+ * FinishedJobRecord without creating any objects.
+ *
+ * The fields to decode are given by their position in the record (see the
+ * constants below, which match the token numbers in FinishedJobRecord).
+ * Scanning stops after the last requested field and only requested fields
+ * are parsed, so adding e.g. MAXVMEM only costs the parsing of that number.
+ * Only numeric fields can be decoded; numbers are stored in the record's
+ * primitive fields, e.g. job_number_value and maxvmem_value.
+ */
+public class FinishedJobRecordDecoder {
+
+    public static final int PRIORITY = 8;
+    public static final int JOB_NUMBER = 6;
+    public static final int SUBMISSION_TIME = 9;
+    public static final int START_TIME = 10;
+    public static final int END_TIME = 11;
+    public static final int FAILED = 12;
+    public static final int EXIT_STATUS = 13;
+    public static final int RU_WALLCLOCK = 14;
+    public static final int RU_UTIME = 15;
+    public static final int RU_STIME = 16;
+    public static final int RU_MAXRSS = 17;
+    public static final int SLOTS = 35;
+    public static final int TASK_NUMBER = 36;
+    public static final int CPU = 37;
+    public static final int MEM = 38;
+    public static final int IO = 39;
+    public static final int IOW = 41;
+    public static final int MAXVMEM = 43;
+    /**
+     * Fields needed to store a finished job, always decoded.
+     */
+    private static final int[] REQUIRED_FIELDS = {JOB_NUMBER, START_TIME, END_TIME, EXIT_STATUS, RU_UTIME, TASK_NUMBER};
+    private static final long SUPPORTED_FIELDS = mask(new int[]{PRIORITY, JOB_NUMBER, SUBMISSION_TIME, START_TIME,
+        END_TIME, FAILED, EXIT_STATUS, RU_WALLCLOCK, RU_UTIME, RU_STIME, RU_MAXRSS, SLOTS, TASK_NUMBER, CPU, MEM,
+        IO, IOW, MAXVMEM});
+    private final long fields;
+    private final int lastField;
+    private final ByteSequence bytes = new ByteSequence();
+
+    /**
+     * Creates a decoder for the required fields plus the given additional
+     * ones.
+     *
+     * @throws IllegalArgumentException if a field is not a numeric field
+     */
+    public FinishedJobRecordDecoder(int... additionalFields) {
+        long m = mask(REQUIRED_FIELDS) | mask(additionalFields);
+
+        if ((m & ~SUPPORTED_FIELDS) != 0) {
+            throw new IllegalArgumentException("Only numeric accounting fields can be decoded");
+        }
+
+        fields = m;
+        lastField = 63 - Long.numberOfLeadingZeros(m);
+    }
+
+    private static long mask(int[] fields) {
+        long m = 0;
+        for (int field : fields) {
+            if (field < 1 || field > 45) {
+                throw new IllegalArgumentException("Invalid accounting field " + field);
+            }
+            m |= 1L << field;
+        }
+        return m;
+    }
+
+    /**
+     * Decodes the requested fields of one record. Returns false if the record
+     * has too few fields or a requested field is not a number, the record's
+     * contents are undefined then.
+     */
+    public boolean decode(CharSequence line, FinishedJobRecord r) {
+        int length = line.length();
+        int field = 1;
+        int fieldStart = 0;
+
+        for (int i = 0; i <= length; i++) {
+            if (i == length || line.charAt(i) == ':') {
+                if ((fields & (1L << field)) != 0 && !store(field, line, fieldStart, i, r)) {
+                    return false;
+                }
+
+                if (field == lastField) {
+                    return true;
+                }
+
+                field++;
+                fieldStart = i + 1;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Decodes one record from the bytes between start and end of the buffer.
+     * The buffer's position and limit are not changed.
+     */
+    public boolean decode(ByteBuffer buffer, int start, int end, FinishedJobRecord r) {
+        bytes.set(buffer, start, end);
+        try {
+            return decode(bytes, r);
+        } finally {
+            bytes.set(null, 0, 0);
+        }
+    }
+
+    private boolean store(int field, CharSequence s, int from, int to, FinishedJobRecord r) {
+        switch (field) {
+            case JOB_NUMBER:
+                r.job_number_value = parseLong(s, from, to);
+                return r.job_number_value != Long.MIN_VALUE;
+            case TASK_NUMBER:
+                long task = parseLong(s, from, to);
+                r.task_number = (int) task;
+                return task != Long.MIN_VALUE;
+            case PRIORITY:
+                long priority = parseLong(s, from, to);
+                r.priority = (int) priority;
+                return priority != Long.MIN_VALUE;
+            case SUBMISSION_TIME:
+                long submission = parseLong(s, from, to);
+                r.submission_time = submission * 1000;
+                return submission != Long.MIN_VALUE;
+            case START_TIME:
+                long start = parseLong(s, from, to);
+                r.start_time = start * 1000;
+                return start != Long.MIN_VALUE;
+            case END_TIME:
+                long end = parseLong(s, from, to);
+                r.end_time = end * 1000;
+                return end != Long.MIN_VALUE;
+            case FAILED:
+                long failed = parseLong(s, from, to);
+                r.failed = failed != 0;
+                return failed != Long.MIN_VALUE;
+            case EXIT_STATUS:
+                long exit = parseLong(s, from, to);
+                r.exit_status = (int) exit;
+                return exit != Long.MIN_VALUE;
+            case SLOTS:
+                long slots = parseLong(s, from, to);
+                r.slots_value = (int) slots;
+                return slots != Long.MIN_VALUE;
+            case RU_WALLCLOCK:
+                return !Double.isNaN(r.ru_wallclock_value = parseDouble(s, from, to));
+            case RU_UTIME:
+                return !Double.isNaN(r.ru_utime_value = parseDouble(s, from, to));
+            case RU_STIME:
+                return !Double.isNaN(r.ru_stime_value = parseDouble(s, from, to));
+            case RU_MAXRSS:
+                return !Double.isNaN(r.ru_maxrss_value = parseDouble(s, from, to));
+            case CPU:
+                return !Double.isNaN(r.cpu_value = parseDouble(s, from, to));
+            case MEM:
+                return !Double.isNaN(r.mem_value = parseDouble(s, from, to));
+            case IO:
+                return !Double.isNaN(r.io_value = parseDouble(s, from, to));
+            case IOW:
+                return !Double.isNaN(r.iow_value = parseDouble(s, from, to));
+            case MAXVMEM:
+                return !Double.isNaN(r.maxvmem_value = parseDouble(s, from, to));
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Parses a decimal integer, returns Long.MIN_VALUE if it is not one.
+     */
+    static long parseLong(CharSequence s, int from, int to) {
+        if (from >= to) {
+            return Long.MIN_VALUE;
+        }
+
+        boolean negative = s.charAt(from) == '-';
+        if (negative && ++from == to) {
+            return Long.MIN_VALUE;
+        }
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int d = s.charAt(i) - '0';
+
+            if (d < 0 || d > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + d;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number with optional fraction and exponent, returns
+     * NaN if it is not one.
+     */
+    static double parseDouble(CharSequence s, int from, int to) {
+        if (from >= to) {
+            return Double.NaN;
+        }
+
+        boolean negative = s.charAt(from) == '-';
+        if (negative) {
+            from++;
+        }
+
+        double value = 0;
+        int digits = 0;
+        int i = from;
+
+        for (; i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++, digits++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+
+        if (i < to && s.charAt(i) == '.') {
+            double scale = 0.1;
+            for (i++; i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++, digits++) {
+                value += (s.charAt(i) - '0') * scale;
+                scale /= 10;
+            }
+        }
+
+        if (digits == 0) {
+            return Double.NaN;
+        }
+
+        if (i + 1 < to && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            long exponent = parseLong(s, s.charAt(i + 1) == '+' ? i + 2 : i + 1, to);
+
+            if (exponent == Long.MIN_VALUE) {
+                return Double.NaN;
+            }
+            value *= Math.pow(10, exponent);
+            i = to;
+        }
+
+        if (i != to) {
+            return Double.NaN;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Presents a range of a byte buffer as characters, one byte per char.
+     */
+    private static class ByteSequence implements CharSequence {
+
+        private ByteBuffer buffer;
+        private int start;
+        private int end;
+
+        void set(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(start + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + length());
+            }
+
+            char[] chars = new char[to - from];
+
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(from + i);
+            }
+
+            return new String(chars);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
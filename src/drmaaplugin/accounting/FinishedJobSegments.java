@@ -0,0 +1,248 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps finished jobs partitioned by the hour in which they ended. Every
+ * hour is stored in its own segment table (FINISHED_JOBS_0, FINISHED_JOBS_1,
+ * ...), and the FINISHED_JOB_SEGMENTS table records which hour a segment
+ * holds. Expiring an hour truncates its table and frees the segment for a
+ * later hour, so retention never has to delete jobs row by row and the
+ * number of segments follows the retention window.
+ *
+ * Segments are assigned and expired by the thread which writes the jobs.
+ * Readers only use getLiveTables.
+ */
+class FinishedJobSegments {
+
+    static final long BUCKET_LENGTH = 1000 * 60 * 60; // 1 hour
+    static final String SEGMENTS_TABLE = "FINISHED_JOB_SEGMENTS";
+    private static final String LEGACY_TABLE = "FINISHED_JOBS";
+    private static final long FREE = -1;
+    private long[] buckets = new long[0];
+    private volatile String[] liveTables = new String[0];
+
+    /**
+     * Loads the segments, creating the segments table if needed. Jobs of the
+     * unpartitioned FINISHED_JOBS table of older versions are moved into
+     * segments and the table is dropped.
+     */
+    FinishedJobSegments(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+
+        try {
+            try {
+                stmt.execute("CREATE TABLE " + SEGMENTS_TABLE + " (SEGMENT INT, BUCKET BIGINT, PRIMARY KEY(SEGMENT))");
+            } catch (SQLException ex) {
+                // HARMLESS, table exists
+            }
+
+            ResultSet rs = stmt.executeQuery("SELECT SEGMENT, BUCKET FROM " + SEGMENTS_TABLE);
+
+            while (rs.next()) {
+                int segment = rs.getInt(1);
+
+                ensureCapacity(segment + 1);
+                buckets[segment] = rs.getLong(2);
+            }
+            rs.close();
+
+            migrateLegacyTable(conn, stmt);
+        } finally {
+            stmt.close();
+        }
+
+        updateLiveTables();
+    }
+
+    static String getTable(int segment) {
+        return LEGACY_TABLE + "_" + segment;
+    }
+
+    private void migrateLegacyTable(Connection conn, Statement stmt) throws SQLException {
+        List<Long> legacyBuckets = new ArrayList<Long>();
+
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT DISTINCT END_TIME / " + BUCKET_LENGTH + " FROM " + LEGACY_TABLE);
+
+            while (rs.next()) {
+                legacyBuckets.add(rs.getLong(1));
+            }
+            rs.close();
+        } catch (SQLException ex) {
+            // HARMLESS, there is no legacy table
+            return;
+        }
+
+        System.out.println("SGE Accounting: Moving finished jobs into " + legacyBuckets.size() + " hourly segments.");
+
+        for (long bucket : legacyBuckets) {
+            int segment = find(bucket);
+
+            if (segment < 0) {
+                segment = assign(bucket, Long.MIN_VALUE, conn);
+            }
+
+            stmt.execute("INSERT INTO " + getTable(segment) + " SELECT * FROM " + LEGACY_TABLE
+                    + " WHERE END_TIME >= " + bucket * BUCKET_LENGTH
+                    + " AND END_TIME < " + (bucket + 1) * BUCKET_LENGTH
+                    + " AND JOB_ID NOT IN (SELECT JOB_ID FROM " + getTable(segment) + ")");
+        }
+
+        stmt.execute("DROP TABLE " + LEGACY_TABLE);
+    }
+
+    private void ensureCapacity(int n) {
+        if (buckets.length < n) {
+            int old = buckets.length;
+
+            buckets = Arrays.copyOf(buckets, n);
+            Arrays.fill(buckets, old, n, FREE);
+        }
+    }
+
+    private void updateLiveTables() {
+        List<String> tables = new ArrayList<String>();
+
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] != FREE) {
+                tables.add(getTable(i));
+            }
+        }
+
+        liveTables = tables.toArray(new String[tables.size()]);
+    }
+
+    /**
+     * Returns the segment tables which currently hold jobs.
+     */
+    String[] getLiveTables() {
+        return liveTables;
+    }
+
+    /**
+     * Returns the segment which holds the given hour, or -1.
+     */
+    synchronized int find(long bucket) {
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] == bucket) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Assigns a segment to the given hour and returns it. A segment whose
+     * hour is older than minBucket is reused first, then a free one, and a
+     * new segment table is created if there is none.
+     */
+    synchronized int assign(long bucket, long minBucket, Connection conn) throws SQLException {
+        int segment = -1;
+
+        for (int i = 0; i < buckets.length && segment < 0; i++) {
+            if (buckets[i] != FREE && buckets[i] < minBucket) {
+                segment = i;
+            }
+        }
+
+        for (int i = 0; i < buckets.length && segment < 0; i++) {
+            if (buckets[i] == FREE) {
+                segment = i;
+            }
+        }
+
+        Statement stmt = conn.createStatement();
+
+        try {
+            if (segment < 0) {
+                segment = buckets.length;
+                ensureCapacity(segment + 1);
+
+                try {
+                    stmt.execute("CREATE TABLE " + getTable(segment) + " ("
+                            + "JOB_ID VARCHAR(32), START_TIME BIGINT, END_TIME BIGINT, EXIT_STATUS INT,"
+                            + " PRIMARY KEY(JOB_ID))");
+                } catch (SQLException ex) {
+                    // HARMLESS, left over from a larger retention window
+                }
+                stmt.execute("INSERT INTO " + SEGMENTS_TABLE + " (SEGMENT, BUCKET) VALUES (" + segment + "," + FREE + ")");
+            }
+
+            stmt.execute("TRUNCATE TABLE " + getTable(segment));
+            stmt.execute("UPDATE " + SEGMENTS_TABLE + " SET BUCKET=" + bucket + " WHERE SEGMENT=" + segment);
+
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        } finally {
+            stmt.close();
+        }
+
+        buckets[segment] = bucket;
+        updateLiveTables();
+
+        return segment;
+    }
+
+    /**
+     * Truncates all segments of hours before minBucket. Returns the number
+     * of expired segments.
+     */
+    synchronized int expire(long minBucket, Connection conn) throws SQLException {
+        int expired = 0;
+        Statement stmt = conn.createStatement();
+
+        try {
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] != FREE && buckets[i] < minBucket) {
+                    stmt.execute("TRUNCATE TABLE " + getTable(i));
+                    stmt.execute("UPDATE " + SEGMENTS_TABLE + " SET BUCKET=" + FREE + " WHERE SEGMENT=" + i);
+                    buckets[i] = FREE;
+                    expired++;
+                }
+            }
+
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        } finally {
+            stmt.close();
+        }
+
+        if (expired > 0) {
+            updateLiveTables();
+        }
+
+        return expired;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Collects finished job records and writes them to the hourly segment tables
+ * of FinishedJobSegments in batches. Records are copied into primitive
+ * arrays, so the caller can reuse its FinishedJobRecord, and a full batch is
+ * written with one prepared MERGE statement per segment in one transaction.
+ * A job which is already in its segment is overwritten, so records which are
+ * read twice after a restart do no harm.
+ */
+class FinishedJobWriter {
+
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final long DEFAULT_MAX_LATENCY = 1000; // ms
+    private final Connection conn;
+    private final FinishedJobSegments segments;
+    private PreparedStatement[] statements = new PreparedStatement[0];
+    private boolean[] usedStatements = new boolean[0];
+    private final int batchSize;
+    private final long maxLatency;
+    private final long retentionWindow;
+    private final long[] jobNumbers;
+    private final int[] taskNumbers;
+    private final long[] startTimes;
+    private final long[] endTimes;
+    private final int[] exitStatuses;
+    private final int[] segmentNumbers;
+    private int count;
+    private boolean failed;
+    private long firstAddTime;
+    private long lastBucket = -1;
+    private int lastSegment = -1;
+    private long writtenRecords;
+    private long batches;
+
+    /**
+     * @param conn connection used only by this writer, it is switched to
+     * manual commit
+     * @param segments segments the jobs are written to
+     * @param batchSize number of records which triggers a write
+     * @param maxLatency time in milliseconds a record may stay buffered
+     * @param retentionWindow time in milliseconds jobs are kept for, jobs
+     * which ended before are not stored
+     */
+    FinishedJobWriter(Connection conn, FinishedJobSegments segments, int batchSize, long maxLatency,
+            long retentionWindow) throws SQLException {
+        this.conn = conn;
+        this.segments = segments;
+        this.batchSize = batchSize;
+        this.maxLatency = maxLatency;
+        this.retentionWindow = retentionWindow;
+
+        jobNumbers = new long[batchSize];
+        taskNumbers = new int[batchSize];
+        startTimes = new long[batchSize];
+        endTimes = new long[batchSize];
+        exitStatuses = new int[batchSize];
+        segmentNumbers = new int[batchSize];
+
+        conn.setAutoCommit(false);
+    }
+
+    private static String getMergeStatement(String table) {
+        return "MERGE INTO " + table + " USING (VALUES("
+                + "CAST(? AS VARCHAR(32)), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS INT)))"
+                + " AS V(JOB_ID, START_TIME, END_TIME, EXIT_STATUS)"
+                + " ON " + table + ".JOB_ID = V.JOB_ID"
+                + " WHEN MATCHED THEN UPDATE SET " + table + ".START_TIME = V.START_TIME,"
+                + " " + table + ".END_TIME = V.END_TIME, " + table + ".EXIT_STATUS = V.EXIT_STATUS"
+                + " WHEN NOT MATCHED THEN INSERT (JOB_ID, START_TIME, END_TIME, EXIT_STATUS)"
+                + " VALUES (V.JOB_ID, V.START_TIME, V.END_TIME, V.EXIT_STATUS)";
+    }
+
+    private PreparedStatement getStatement(int segment) throws SQLException {
+        if (segment >= statements.length) {
+            statements = Arrays.copyOf(statements, segment + 1);
+            usedStatements = Arrays.copyOf(usedStatements, segment + 1);
+        }
+
+        if (statements[segment] == null) {
+            statements[segment] = conn.prepareStatement(getMergeStatement(FinishedJobSegments.getTable(segment)));
+        }
+
+        return statements[segment];
+    }
+
+    /**
+     * Returns the segment for jobs which ended at the given time, assigning
+     * one for a new hour. Returns -1 if the job is older than the retention
+     * window.
+     */
+    private int getSegment(long endTime) throws SQLException {
+        // Jobs which failed before they started have no end time, they are
+        // kept for the retention window from now on
+        long bucket = (endTime > 0 ? endTime : System.currentTimeMillis()) / FinishedJobSegments.BUCKET_LENGTH;
+
+        if (bucket == lastBucket) {
+            return lastSegment;
+        }
+
+        long minBucket = (System.currentTimeMillis() - retentionWindow) / FinishedJobSegments.BUCKET_LENGTH;
+
+        if (bucket < minBucket) {
+            return -1;
+        }
+
+        int segment = segments.find(bucket);
+
+        if (segment < 0) {
+            // The segment may be reused, the buffered jobs have to be
+            // written before it is truncated
+            if (!write()) {
+                throw new SQLException("Unable to store the buffered jobs before assigning a segment");
+            }
+            segment = segments.assign(bucket, minBucket, conn);
+        }
+
+        lastBucket = bucket;
+        lastSegment = segment;
+
+        return segment;
+    }
+
+    /**
+     * Buffers the record and writes the batch if it is full or the oldest
+     * buffered record has waited longer than the maximum latency.
+     */
+    void add(FinishedJobRecord r) {
+        long endTime = r.getStoredEndTime();
+        int segment;
+
+        try {
+            segment = getSegment(endTime);
+        } catch (SQLException ex) {
+            System.err.println("SGE Accounting: Unable to assign a segment for job " + r.job_number_value);
+            ex.printStackTrace();
+            failed = true;
+            return;
+        }
+
+        if (segment < 0) {
+            return;
+        }
+
+        if (count == 0) {
+            firstAddTime = System.currentTimeMillis();
+        }
+
+        jobNumbers[count] = r.job_number_value;
+        taskNumbers[count] = r.task_number;
+        startTimes[count] = r.start_time;
+        endTimes[count] = endTime;
+        exitStatuses[count] = r.exit_status;
+        segmentNumbers[count] = segment;
+        count++;
+
+        if (count >= batchSize || System.currentTimeMillis() - firstAddTime >= maxLatency) {
+            write();
+        }
+    }
+
+    /**
+     * Writes all buffered records. Returns false if any record added since
+     * the previous flush could not be stored, including batches written
+     * when the buffer was full. The records are dropped in that case, so the
+     * caller has to read them again from the last position it saved.
+     */
+    boolean flush() {
+        boolean ok = write() && !failed;
+
+        failed = false;
+
+        return ok;
+    }
+
+    /**
+     * Writes the buffered records in one transaction. Returns false if the
+     * batch was dropped.
+     */
+    private boolean write() {
+        if (count == 0) {
+            return true;
+        }
+
+        StringBuilder sb = new StringBuilder(32);
+
+        try {
+            for (int i = 0; i < count; i++) {
+                sb.setLength(0);
+                sb.append(jobNumbers[i]);
+
+                if (taskNumbers[i] > 0) {
+                    sb.append('.');
+                    sb.append(taskNumbers[i]);
+                }
+
+                PreparedStatement stmt = getStatement(segmentNumbers[i]);
+
+                stmt.setString(1, sb.toString());
+                stmt.setLong(2, startTimes[i]);
+                stmt.setLong(3, endTimes[i]);
+                stmt.setInt(4, exitStatuses[i]);
+                stmt.addBatch();
+
+                usedStatements[segmentNumbers[i]] = true;
+            }
+
+            for (int i = 0; i < statements.length; i++) {
+                if (usedStatements[i]) {
+                    statements[i].executeBatch();
+                }
+            }
+            conn.commit();
+
+            writtenRecords += count;
+            batches++;
+            return true;
+        } catch (SQLException ex) {
+            System.err.println("SGE Accounting: Failed to store " + count + " finished jobs.");
+            ex.printStackTrace();
+
+            try {
+                for (int i = 0; i < statements.length; i++) {
+                    if (usedStatements[i]) {
+                        statements[i].clearBatch();
+                    }
+                }
+                conn.rollback();
+            } catch (SQLException ex2) {
+                ex2.printStackTrace();
+            }
+            failed = true;
+            return false;
+        } finally {
+            Arrays.fill(usedStatements, false);
+            count = 0;
+        }
+    }
+
+    /**
+     * Removes the jobs which ended before the given time by expiring their
+     * segments. Only whole hours are expired, so jobs of the hour the cutoff
+     * falls into stay until that hour has passed. Returns the number of
+     * expired segments.
+     */
+    int expire(long cutOffTime) {
+        // A failure stays pending for the next flush
+        write();
+
+        try {
+            return segments.expire(cutOffTime / FinishedJobSegments.BUCKET_LENGTH, conn);
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            return 0;
+        } finally {
+            // the segment may have been freed
+            lastBucket = -1;
+            lastSegment = -1;
+        }
+    }
+
+    /**
+     * Returns the number of records waiting to be written.
+     */
+    int getPendingRecords() {
+        return count;
+    }
+
+    long getWrittenRecords() {
+        return writtenRecords;
+    }
+
+    long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Writes the remaining records and closes the statements and connection.
+     */
+    void close() {
+        flush();
+
+        try {
+            for (PreparedStatement stmt : statements) {
+                if (stmt != null) {
+                    stmt.close();
+                }
+            }
+            conn.close();
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
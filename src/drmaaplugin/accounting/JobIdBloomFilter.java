@@ -0,0 +1,165 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the job ids in the finished job store. It answers
+ * whether a job is definitely not stored, so lookups of unknown, foreign or
+ * not yet accounted jobs do not have to query the database. Jobs are hashed
+ * by their packed job and task number and bits are set atomically, so the
+ * tailer can add jobs while lookups run.
+ *
+ * Jobs cannot be removed from a Bloom filter, the filter is rebuilt from the
+ * store after expired jobs were dropped.
+ */
+public class JobIdBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final long expectedInsertions;
+    private final AtomicLong insertions = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param expectedInsertions number of jobs the filter is sized for
+     * @param fpp false positive probability at that number of jobs
+     */
+    public JobIdBloomFilter(long expectedInsertions, double fpp) {
+        this.expectedInsertions = Math.max(1, expectedInsertions);
+
+        long m = (long) Math.ceil(-this.expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (m + 63) / 64));
+
+        bits = new AtomicLongArray(words);
+        numBits = words * 64L;
+        numHashes = Math.max(1, (int) Math.round((double) numBits / this.expectedInsertions * Math.log(2)));
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Adds the job with the given job and task number.
+     */
+    public void add(long jobNumber, int taskNumber) {
+        long h1 = mix(jobNumber << 32 | (taskNumber & 0xffffffffL));
+        long h2 = mix(h1) | 1;
+
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+
+            do {
+                old = bits.get(word);
+            } while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+        }
+
+        insertions.incrementAndGet();
+    }
+
+    /**
+     * Returns false if the job is definitely not in the store. Ids which are
+     * not of the form "job" or "job.task" always might be.
+     */
+    public boolean mightContain(String jobId) {
+        long key = FinishedJobIndex.toKey(jobId);
+
+        queries.incrementAndGet();
+
+        if (key == 0) {
+            return true;
+        }
+
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                rejections.incrementAndGet();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the false positive probability for the number of jobs added so
+     * far.
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) numHashes * insertions.get() / numBits), numHashes);
+    }
+
+    /**
+     * Returns the size of the bit array in bytes.
+     */
+    public long getMemorySize() {
+        return numBits / 8;
+    }
+
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * Returns the number of lookups answered by the filter.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the number of lookups the filter answered with "not stored".
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @Override
+    public String toString() {
+        return insertions.get() + " jobs, " + getMemorySize() / 1024 + " KB, " + numHashes + " hashes, fpp "
+                + String.format("%.4f", getFalsePositiveRate()) + ", " + rejections.get() + "/" + queries.get()
+                + " lookups rejected";
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. 
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader   
+ community according to the GPL license.
+ */
+package drmaaplugin.accounting;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the accounting file through memory mapped windows of the file and
+ * decodes records straight from the mapped bytes. Record boundaries are found
+ * by scanning for line breaks and records are decoded in place by a
+ * FinishedJobRecordDecoder, so reading the millions of records in a large
+ * accounting file creates no garbage.
+ */
+public class MappedAccountingReader implements AccountingRecordReader {
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private final FileChannel channel;
+    private final FinishedJobRecordDecoder decoder;
+    private MappedByteBuffer window;
+    private long windowOffset;
+    private int position;
+
+    /**
+     * @param channel channel of the accounting file
+     * @param offset byte offset to start reading at, must be the start of a
+     * line
+     * @param decoder decoder for the fields the caller needs
+     */
+    public MappedAccountingReader(FileChannel channel, long offset, FinishedJobRecordDecoder decoder) {
+        this.channel = channel;
+        this.windowOffset = offset;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public boolean next(FinishedJobRecord r, long minEndTime) throws IOException {
+        while (true) {
+            int end = findLineEnd();
+
+            if (end < 0) {
+                if (!remap()) {
+                    return false;
+                }
+                continue;
+            }
+
+            int start = position;
+            position = end + 1;
+
+            if (decode(start, end, r, minEndTime)) {
+                return true;
+            }
+        }
+    }
+
+    private int findLineEnd() {
+        if (window == null) {
+            return -1;
+        }
+
+        int limit = window.limit();
+        for (int i = position; i < limit; i++) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // Maps the next window starting at the current line. Returns false if
+    // the file has no bytes beyond what is already mapped.
+    private boolean remap() throws IOException {
+        long offset = getOffset();
+        long length = Math.min(WINDOW_SIZE, channel.size() - offset);
+        int mapped = window == null ? 0 : window.limit() - position;
+
+        if (length <= mapped) {
+            if (mapped == WINDOW_SIZE) {
+                throw new IOException("Accounting record at offset " + offset + " is longer than " + WINDOW_SIZE + " bytes");
+            }
+            return false;
+        }
+
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        windowOffset = offset;
+        position = 0;
+
+        return true;
+    }
+
+    private boolean decode(int start, int end, FinishedJobRecord r, long minEndTime) {
+        if (end > start && window.get(end - 1) == '\r') {
+            end--;
+        }
+
+        if (end == start || window.get(start) == '#') {
+            return false;
+        }
+
+        if (!decoder.decode(window, start, end, r)) {
+            System.err.println("SGE Accounting: Skipping malformed record at offset " + (windowOffset + start));
+            return false;
+        }
+
+        return r.endedAfter(minEndTime);
+    }
+
+    @Override
+    public long getOffset() {
+        return windowOffset + position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -24,11 +24,19 @@
 package drmaaplugin.accounting;
 
 import java.io.*;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Semaphore;
@@ -50,17 +58,37 @@ public class SGEAccountingThread extends Thread {
     private final String START_TIME_COLUMN = "START_TIME";
     private final String END_TIME_COLUMN = "END_TIME";
     private final String EXIT_STATUS_COLUMN = "EXIT_STATUS";
-    private final String FINISHED_JOBS_TABLE = "FINISHED_JOBS";
     private final String PARAMETERS_TABLE = "PARAMETERS";
     private final String LAST_SYNC_TIME_COLUMN = "LAST_SYNC_TIME";
     private final String LAST_SYNC_FILESIZE_COLUMN = "LAST_SYNC_FILESIZE";
+    private final String LAST_SYNC_OFFSET_COLUMN = "LAST_SYNC_OFFSET";
+    private final String LAST_SYNC_FILE_COLUMN = "LAST_SYNC_FILE";
     private static NumberFormat formatter = NumberFormat.getInstance();
-    private boolean parsedRotatedFile;
-    private boolean shutdown;
+    private volatile boolean shutdown;
+    private volatile boolean useMappedParser;
+    private volatile boolean useWatchService;
+    private volatile AccountingFileWatcher watcher;
+    private volatile long backfillWindow;
+    private volatile long retentionWindow = DEFAULT_RETENTION_WINDOW;
+    private FinishedJobSegments segments;
+    private volatile double negativeCacheFpp;
+    private volatile JobIdBloomFilter jobFilter;
+    private final FinishedJobRecordDecoder decoder = new FinishedJobRecordDecoder();
+    private FinishedJobWriter writer;
+    private volatile FinishedJobIndex index;
     private Semaphore semaphore;
     private final LinkedList<Connection> availableConnections;
     private final Set<Connection> allConnections;
     private static final int MAX_CONCURRENT_DB_CONNECTIONS = 4;
+    private static final int BULK_QUERY_SIZE = 500;
+    private static final long DEFAULT_RETENTION_WINDOW = 1000 * 60 * 60 * 24; // 24 hours
+    private static final long CLEANUP_INTERVAL = 1000 * 60 * 30; // 30 minutes
+    private static final int MIN_FILTER_SIZE = 64 * 1024;
+    private static final long SYNC_POSITION_INTERVAL = 16 * 1024 * 1024; // bytes
+    private static final int ARCHIVE_BUFFER_SIZE = 256 * 1024;
+    private static final long POLL_INTERVAL = 2000;
+    private static final long REOPEN_INTERVAL = 10000;
+    private static final long WATCH_FALLBACK_INTERVAL = 30000;
     private String databaseURL;
     private String dbUsername;
     private String dbPassword;
@@ -100,40 +128,38 @@ public class SGEAccountingThread extends Thread {
 
             Statement stmt = conn.createStatement();
 
-            try {
-                stmt.execute("CREATE TABLE " + FINISHED_JOBS_TABLE + " ( "
-                        + JOB_ID_COLUMN + " VARCHAR(32),"
-                        + START_TIME_COLUMN + " BIGINT,"
-                        + END_TIME_COLUMN + " BIGINT,"
-                        + EXIT_STATUS_COLUMN + " INT,"
-                        + "PRIMARY KEY(" + JOB_ID_COLUMN + "))");
-            } catch (Exception ex) {
-
-                // Try to add primary key 
-                try {
-                    stmt.execute("ALTER TABLE " + FINISHED_JOBS_TABLE + " ADD PRIMARY KEY (" + JOB_ID_COLUMN + ")");
-                } catch (Exception ex2) {
-                    // HARMLESS
-                }
-
-            }
-
-
             try {
                 stmt.execute("CREATE TABLE " + PARAMETERS_TABLE + " ("
                         + LAST_SYNC_TIME_COLUMN + " BIGINT,"
-                        + LAST_SYNC_FILESIZE_COLUMN + " BIGINT )");
+                        + LAST_SYNC_FILESIZE_COLUMN + " BIGINT,"
+                        + LAST_SYNC_OFFSET_COLUMN + " BIGINT,"
+                        + LAST_SYNC_FILE_COLUMN + " VARCHAR(256) )");
 
                 stmt.execute("INSERT INTO " + PARAMETERS_TABLE + " ( "
-                        + LAST_SYNC_TIME_COLUMN + ", " + LAST_SYNC_FILESIZE_COLUMN + ") VALUES (0,0)");
+                        + LAST_SYNC_TIME_COLUMN + ", " + LAST_SYNC_FILESIZE_COLUMN + ", "
+                        + LAST_SYNC_OFFSET_COLUMN + ") VALUES (0,0,0)");
 
 
             } catch (Exception ex) {
-                // HARMLESS 
+
+                // Table exists, add columns which databases of older versions don't have
+                try {
+                    stmt.execute("ALTER TABLE " + PARAMETERS_TABLE + " ADD COLUMN " + LAST_SYNC_OFFSET_COLUMN + " BIGINT DEFAULT 0");
+                } catch (Exception ex2) {
+                    // HARMLESS
+                }
+
+                try {
+                    stmt.execute("ALTER TABLE " + PARAMETERS_TABLE + " ADD COLUMN " + LAST_SYNC_FILE_COLUMN + " VARCHAR(256)");
+                } catch (Exception ex2) {
+                    // HARMLESS
+                }
             } finally {
                 stmt.close();
             }
 
+            segments = new FinishedJobSegments(conn);
+
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -272,9 +298,9 @@ public class SGEAccountingThread extends Thread {
         return 0;
     }
 
-    private long getLastSyncFileSize() {
+    private long getLastSyncOffset() {
         StringBuilder sb = new StringBuilder("SELECT ");
-        sb.append(LAST_SYNC_FILESIZE_COLUMN);
+        sb.append(LAST_SYNC_OFFSET_COLUMN);
         sb.append(" FROM ");
         sb.append(PARAMETERS_TABLE);
 
@@ -282,7 +308,7 @@ public class SGEAccountingThread extends Thread {
 
             ResultSet rs = executeQuery(sb.toString());
             if (rs != null && rs.next()) {
-                return rs.getLong(LAST_SYNC_FILESIZE_COLUMN);
+                return rs.getLong(LAST_SYNC_OFFSET_COLUMN);
             }
 
         } catch (Exception ex) {
@@ -292,6 +318,26 @@ public class SGEAccountingThread extends Thread {
         return 0;
     }
 
+    private String getLastSyncFile() {
+        StringBuilder sb = new StringBuilder("SELECT ");
+        sb.append(LAST_SYNC_FILE_COLUMN);
+        sb.append(" FROM ");
+        sb.append(PARAMETERS_TABLE);
+
+        try {
+
+            ResultSet rs = executeQuery(sb.toString());
+            if (rs != null && rs.next()) {
+                return rs.getString(LAST_SYNC_FILE_COLUMN);
+            }
+
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
     private void updateLastSyncTime() {
         StringBuilder sb = new StringBuilder("UPDATE ");
         sb.append(PARAMETERS_TABLE);
@@ -305,25 +351,89 @@ public class SGEAccountingThread extends Thread {
         executeUpdate(sb.toString());
     }
 
-    private void updateLastSyncFileSize(long filesize) {
+    /**
+     * Stores how far the accounting file has been read, together with the
+     * identity of the file so a rotation can be told apart on restart.
+     */
+    private void updateSyncPosition(String fileId, long offset) {
         StringBuilder sb = new StringBuilder("UPDATE ");
         sb.append(PARAMETERS_TABLE);
 
         sb.append(" SET ");
 
+        sb.append(LAST_SYNC_OFFSET_COLUMN);
+        sb.append("=?,");
+        sb.append(LAST_SYNC_FILE_COLUMN);
+        sb.append("=?,");
         sb.append(LAST_SYNC_FILESIZE_COLUMN);
-        sb.append("=");
-        sb.append(filesize);
+        sb.append("=?");
 
-        executeUpdate(sb.toString());
+        Connection conn = acquireConnection();
+
+        try {
+            PreparedStatement stmt = conn.prepareStatement(sb.toString());
+
+            stmt.setLong(1, offset);
+            stmt.setString(2, fileId);
+            stmt.setLong(3, offset);
+
+            stmt.executeUpdate();
+            stmt.close();
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+        } finally {
+            releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Returns an identifier of the file which changes when the file is
+     * replaced (device and inode on Unix), or null if the platform has none.
+     */
+    private static String getFileIdentity(File f) {
+        try {
+            Object key = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+
+            return key == null ? null : key.toString();
+        } catch (IOException ex) {
+            return null;
+        }
     }
 
     @Override
     public void run() {
+        if (useWatchService) {
+            try {
+                watcher = new AccountingFileWatcher(new File(filepath));
+            } catch (IOException ex) {
+                System.err.println("SGE Accounting: Unable to watch " + filepath + ", polling instead.");
+                ex.printStackTrace();
+            }
+        }
+
+        rebuildJobFilter();
+
+        // Nothing was ever read, load the history of the rotated files
+        if (backfillWindow > 0 && getLastSyncFile() == null) {
+            backfill();
+        }
+
         do {
-            parseFile(filepath, true, true);
-            
+            boolean rotated = tailFile();
+
             if (shutdown) {
+                if (watcher != null) {
+                    watcher.close();
+                }
+
+                if (writer != null) {
+                    writer.close();
+                }
+
+                if (index != null) {
+                    index.close();
+                }
+
                 for (Connection conn : allConnections) {
                     try {
                         conn.close();
@@ -334,58 +444,20 @@ public class SGEAccountingThread extends Thread {
                 break;
             }
 
-            try {
-                Thread.sleep(10000);
-            } catch (Exception ex) {
-                ex.printStackTrace();
+            // A rotated file is opened again right away, the new file is
+            // usually there already
+            if (!rotated) {
+                try {
+                    waitForChange(REOPEN_INTERVAL);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
             }
 
         } while (true);
 
     }
 
-    /**
-     * Copies a file from in to out using FileChannel
-     */
-    public static void copyFile(File in, File out)
-            throws IOException {
-        FileChannel inChannel = new FileInputStream(in).getChannel();
-        FileChannel outChannel = new FileOutputStream(out).getChannel();
-        try {
-            inChannel.transferTo(0, inChannel.size(),
-                    outChannel);
-        } catch (IOException e) {
-            throw e;
-        } finally {
-            if (inChannel != null) {
-                inChannel.close();
-            }
-            if (outChannel != null) {
-                outChannel.close();
-            }
-        }
-    }
-
-    public static String decompress(File file) throws Exception {
-        GZIPInputStream gzipInputStream = new GZIPInputStream(new FileInputStream(file));
-
-        String outFilePath = file.getAbsolutePath().replace(".gz", "");
-        OutputStream out = new FileOutputStream(outFilePath);
-
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = gzipInputStream.read(buf)) > 0) {
-            out.write(buf, 0, len);
-        }
-
-        gzipInputStream.close();
-        out.close();
-
-        file.delete();
-
-        return outFilePath;
-    }
-
     private String getDuration(long duration) {
         if (duration < 0) {
             //return "Negative Time Value"; 
@@ -449,275 +521,634 @@ public class SGEAccountingThread extends Thread {
         return sb.toString();
     }
 
-    private void parseFile(String filePath, boolean updateDB, boolean continious) {
-        System.out.println("SGE Accounting: File location " + filePath);
+    /**
+     * Stores the jobs of all rotated accounting files which ended within the
+     * backfill window, oldest first.
+     */
+    private void backfill() {
+        long startTime = System.currentTimeMillis();
+        AccountingBackfill backfill = new AccountingBackfill(filepath, startTime - backfillWindow);
 
-        boolean isZip = false;
+        if (backfill.getNumArchives() == 0) {
+            return;
+        }
 
-        if (filePath.endsWith(".gz")) {
-            File orig = new File(filePath);
-            File copy = new File("./" + orig.getName());
+        System.out.println("SGE Accounting: Backfilling from " + backfill.getNumArchives() + " rotated files.");
 
-            try {
-                System.out.println("SGE Accounting: Copying " + orig.getPath() + " to " + copy.getPath());
-                copyFile(orig, copy);
-                System.out.println("SGE Accounting: Decompressing: " + copy.getAbsolutePath());
-                filePath = decompress(copy);
-                System.out.println("SGE Accounting: Decompressed: " + filePath);
+        FinishedJobWriter jobWriter = index == null ? getWriter() : null;
 
-            } catch (Exception ex) {
-                ex.printStackTrace();
+        if (index == null && jobWriter == null) {
+            return;
+        }
+
+        try {
+            backfill.load(Runtime.getRuntime().availableProcessors());
+
+            FinishedJobRecord r = new FinishedJobRecord();
+            long stored = 0;
+
+            while (!shutdown && backfill.next(r)) {
+                store(jobWriter, r);
+                stored++;
             }
 
-            isZip = true;
+            if (!flush(jobWriter)) {
+                System.err.println("SGE Accounting: Backfill could not store all jobs.");
+            }
+
+            System.out.println("SGE Accounting: Backfill stored " + stored + " jobs in "
+                    + getDuration(System.currentTimeMillis() - startTime) + ".");
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        } finally {
+            backfill.close();
         }
+    }
 
+    /**
+     * Waits until the accounting file may have changed. With a watcher this
+     * returns as soon as the file is written, created or renamed, otherwise
+     * it sleeps for the given poll interval.
+     */
+    private void waitForChange(long pollInterval) throws InterruptedException {
+        AccountingFileWatcher w = watcher;
 
-        File f = new File(filePath);
+        if (w != null) {
+            w.await(WATCH_FALLBACK_INTERVAL);
+        } else {
+            Thread.sleep(pollInterval);
+        }
+    }
 
-        if (updateDB) {
-            long length = f.length();
-            long lastSyncFileSize = getLastSyncFileSize();
-
-            if (length < lastSyncFileSize || length == 0) {
-                System.out.println("SGE Accounting: File has been rotated.");
-                // File rotated, we need to open previous file and read all the entries from there
-                // First check if we already parsed the rotated file for not repeating the process over n over
-                if (!parsedRotatedFile) {
-                    parseFile(filePath + ".0.gz", false, false);
-                    updateLastSyncFileSize(0);
-                }
-                return;
-            }
+    /**
+     * Follows the accounting file, starting where the previous run stopped.
+     * Returns true when the file was rotated, false if it could not be read,
+     * jobs could not be stored or the thread is shut down.
+     */
+    private boolean tailFile() {
+        System.out.println("SGE Accounting: File location " + filepath);
+
+        File f = new File(filepath);
+
+        if (!f.exists()) {
+            System.out.println("SGE Accounting: File does not exist.");
+            return false;
         }
 
-        try {
-            FileInputStream fis = new FileInputStream(f);
+        String fileId = getFileIdentity(f);
+        String lastFileId = getLastSyncFile();
+        long offset = getLastSyncOffset();
 
-            final InputStreamReader isr = new InputStreamReader(fis);
+        boolean rotated = lastFileId != null && fileId != null && !lastFileId.equals(fileId);
 
-            final BufferedReader br = new BufferedReader(isr);
-            boolean log = false;
-            long cutOffTime = 1000 * 60 * 60 * 24; // 24 hours
-            long cleanupInterval = 1000 * 60 * 30; // 30 minutes
-            long lastCleanupTime = 0;
+        // A file which got shorter was rotated by copying and truncating,
+        // or on a file system without file identities
+        if (rotated || offset > f.length()) {
+            System.out.println("SGE Accounting: File has been " + (rotated ? "rotated." : "truncated."));
+            // Records appended to the old file after our offset are in the rotated file now
+            if (!parseRotatedFile(filepath + ".0.gz", offset)) {
+                // Keep the old position, the rotated file is read again
+                return false;
+            }
+            offset = 0;
+            updateSyncPosition(fileId, offset);
+        }
+
+        if (offset > 0) {
+            System.out.println("SGE Accounting: Resuming at offset " + offset);
+        }
 
+        AccountingRecordReader reader = null;
+        FinishedJobWriter jobWriter = index == null ? getWriter() : null;
 
-            long lastSyncTime = getLastSyncTime();
+        if (index == null && jobWriter == null) {
+            return false;
+        }
 
-            if (lastSyncTime > 0) {
-                cutOffTime = System.currentTimeMillis() - lastSyncTime + 1000 * 60 * 5;
+        try {
+            FileInputStream fis = new FileInputStream(f);
+            fis.getChannel().position(offset);
+
+            if (useMappedParser) {
+                reader = new MappedAccountingReader(fis.getChannel(), offset, decoder);
+            } else {
+                reader = new AccountingLineReader(fis, offset, decoder);
             }
 
+            FinishedJobRecord r = new FinishedJobRecord();
+            long lastCleanupTime = 0;
 
-            System.out.println("SGE Accounting: Cutoff time: " + getDuration(cutOffTime));
+            System.out.println("SGE Accounting: Keeping jobs for " + getDuration(retentionWindow));
 
-            int numJobsAdded = 0;
+            long syncedOffset = offset;
 
             while (true) {
                 if (shutdown) {
                     break;
                 }
-                String response = br.readLine();
-                
-                if (response == null) {
-                    if (!continious) {
-                        break;
+
+                if (!reader.next(r, System.currentTimeMillis() - retentionWindow)) {
+                    // Dropped jobs are read again when the file is reopened
+                    // at the saved position
+                    if (!flush(jobWriter)) {
+                        return false;
                     }
 
-                    if (numJobsAdded > 0) {
-                        if (updateDB) {
-                            updateLastSyncTime();
-                            updateLastSyncFileSize(f.length());
-                        }
-//                        System.out.println("SGE Accounting:" + numJobsAdded + " jobs added to db");
-                        numJobsAdded = 0;
-                    } else {
-                        if (!f.exists() || f.length() < getLastSyncFileSize()) {
-                            System.out.println("SGE Accounting: " + new Date() + ": File rotated.");
-                            break;
-                        }
+                    if (reader.getOffset() != syncedOffset) {
+                        syncedOffset = reader.getOffset();
+                        updateSyncPosition(fileId, syncedOffset);
+                        updateLastSyncTime();
+                    }
+
+                    String currentId = getFileIdentity(f);
+
+                    if (!f.exists() || f.length() < syncedOffset
+                            || (fileId != null && currentId != null && !fileId.equals(currentId))) {
+                        System.out.println("SGE Accounting: " + new Date() + ": File rotated.");
+                        return true;
                     }
 
-                    if (System.currentTimeMillis() - lastCleanupTime > cleanupInterval) {
-                        cleanup(cutOffTime);
+                    if (System.currentTimeMillis() - lastCleanupTime > CLEANUP_INTERVAL) {
+                        cleanup(jobWriter, System.currentTimeMillis() - retentionWindow);
                         lastCleanupTime = System.currentTimeMillis();
                     }
 
-                    Thread.sleep(2000);
-                    log = true;
+                    waitForChange(POLL_INTERVAL);
                     continue;
                 }
 
-                FinishedJobRecord r = new FinishedJobRecord(response);
+                store(jobWriter, r);
+
+                // Store the position now and then, so a restart does not
+                // have to read everything again. Buffered records are written
+                // first, the position must never be ahead of the database.
+                if (reader.getOffset() - syncedOffset >= SYNC_POSITION_INTERVAL) {
+                    if (!flush(jobWriter)) {
+                        return false;
+                    }
+                    syncedOffset = reader.getOffset();
+                    updateSyncPosition(fileId, syncedOffset);
+                }
+            }
+        } catch (InternalError ex) {
+            // The JVM reports a mapped page of a file which was truncated
+            // under it this way. The file is opened again at the saved
+            // position, where the truncation is handled like a rotation.
+            System.err.println("SGE Accounting: Lost the mapped accounting file, opening it again.");
+            ex.printStackTrace();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            flush(jobWriter);
 
-//                if (log) {
-//
-//                    System.out.println("SGE Accounting: Job " + r.job_number + "." + r.task_number
-//                            + " finished ");// + "(qname=" + r.qname + ", endTime=" + r.end_time
-////                            + " startTime=" + r.start_time + " exitStatus=" + r.exit_status + ")");
-//                }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
 
-                
-//                
-//                
-//                if (System.currentTimeMillis() - r.end_time < cutOffTime) {
-//                    System.out.println("Persisting " + r.job_number);
-//                    persist(r);
-//                    numJobsAdded++;
-//                } else { 
-//                    System.out.println("NOT Persisting " + r.job_number);
-//                }
+        return false;
+    }
 
+    /**
+     * Reads the records which were appended to the accounting file after the
+     * given offset before it got rotated. The archive is inflated as a stream
+     * straight from its location, nothing is written to disk. Returns false
+     * if the records could not be stored.
+     */
+    private boolean parseRotatedFile(String filePath, long offset) {
+        File f = new File(filePath);
+
+        if (!f.exists()) {
+            System.out.println("SGE Accounting: Rotated file " + filePath + " does not exist.");
+            return true;
+        }
+
+        AccountingRecordReader reader = null;
+        FinishedJobWriter jobWriter = index == null ? getWriter() : null;
+        boolean stored;
+
+        if (index == null && jobWriter == null) {
+            return false;
+        }
+
+        try {
+            InputStream in = openArchive(f);
+
+            if (skipFully(in, offset) < offset) {
+                // The archive is shorter than the old file was, it is not
+                // the file we were reading. Read it from the start.
+                in.close();
+                in = openArchive(f);
+                offset = 0;
+            }
+
+            System.out.println("SGE Accounting: Reading " + f.getPath() + " from offset " + offset);
+
+            reader = new AccountingLineReader(in, offset, decoder);
+
+            FinishedJobRecord r = new FinishedJobRecord();
+
+            while (!shutdown && reader.next(r, System.currentTimeMillis() - retentionWindow)) {
+                store(jobWriter, r);
             }
         } catch (Exception ex) {
             ex.printStackTrace();
+        } finally {
+            // A file which cannot be read is skipped, as before, but jobs
+            // which could not be stored are read again
+            stored = flush(jobWriter) && !shutdown;
+
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
         }
 
-        if (isZip) {
-            f.delete();
-            parsedRotatedFile = true;
+        return stored;
+    }
 
+    private static InputStream openArchive(File f) throws IOException {
+        return new GZIPInputStream(new FileInputStream(f), ARCHIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Skips n bytes of the stream, returns the number of bytes skipped which
+     * is less than n only at the end of the stream.
+     */
+    private static long skipFully(InputStream in, long n) throws IOException {
+        long skipped = 0;
+
+        while (skipped < n) {
+            long s = in.skip(n - skipped);
+
+            if (s <= 0) {
+                if (in.read() < 0) {
+                    break;
+                }
+                s = 1;
+            }
+            skipped += s;
         }
+
+        return skipped;
     }
 
     public GridJobInfo getFinishedJobInfo(String jobId) {
-        GridJobInfo gji = new GridJobInfo(jobId);
-        gji.setState(GridJobInfo.STATE_NOT_FOUND);
+        return getFinishedJobInfo(Collections.singletonList(jobId)).get(jobId);
+    }
 
-        StringBuilder sb = new StringBuilder("SELECT ");
-        sb.append(START_TIME_COLUMN);
-        sb.append(",");
-        sb.append(END_TIME_COLUMN);
-        sb.append(",");
-        sb.append(EXIT_STATUS_COLUMN);
+    /**
+     * Looks up many jobs at once. Jobs are queried in chunks with a single IN
+     * list per chunk and segment, all segments in one UNION ALL query, so one
+     * round trip covers up to BULK_QUERY_SIZE jobs. Jobs which are not in the
+     * database are returned with STATE_NOT_FOUND.
+     */
+    public Map<String, GridJobInfo> getFinishedJobInfo(Collection<String> jobIds) {
+        Map<String, GridJobInfo> ret = new HashMap<String, GridJobInfo>();
+        FinishedJobIndex jobIndex = index;
 
-        sb.append(" FROM ");
-        sb.append(FINISHED_JOBS_TABLE);
-        sb.append(" WHERE ");
-        sb.append(JOB_ID_COLUMN);
-        sb.append("='");
-        sb.append(jobId);
-        sb.append("'");
+        if (jobIndex != null) {
+            for (String jobId : jobIds) {
+                ret.put(jobId, jobIndex.get(jobId));
+            }
+            return ret;
+        }
 
+        for (String jobId : jobIds) {
+            GridJobInfo gji = new GridJobInfo(jobId);
+            gji.setState(GridJobInfo.STATE_NOT_FOUND);
+            ret.put(jobId, gji);
+        }
 
-        try {
+        String[] tables = segments == null ? new String[0] : segments.getLiveTables();
 
-            ResultSet rs = executeQuery(sb.toString());
-            if (rs != null && rs.next()) {
-                long start_time = rs.getLong(START_TIME_COLUMN);
-                long end_time = rs.getLong(END_TIME_COLUMN);
-                int exit_status = rs.getInt(EXIT_STATUS_COLUMN);
+        if (tables.length == 0) {
+            return ret;
+        }
+
+        List<String> ids = new ArrayList<String>(ret.size());
+        JobIdBloomFilter filter = jobFilter;
 
+        for (String jobId : ret.keySet()) {
+            // Jobs the filter rules out are not in the database
+            if (filter == null || filter.mightContain(jobId)) {
+                ids.add(jobId);
+            }
+        }
+
+        for (int from = 0; from < ids.size(); from += BULK_QUERY_SIZE) {
+            List<String> chunk = ids.subList(from, Math.min(from + BULK_QUERY_SIZE, ids.size()));
 
+            StringBuilder sb = new StringBuilder();
+
+            for (int t = 0; t < tables.length; t++) {
+                if (t > 0) {
+                    sb.append(" UNION ALL ");
+                }
 
-                gji.setState(GridJobInfo.STATE_FINISHED);
-                gji.setStartTime(start_time);
-                gji.setFinishTime(end_time);
-                gji.setExitStatus(exit_status);
+                sb.append("SELECT ");
+                sb.append(JOB_ID_COLUMN);
+                sb.append(",");
+                sb.append(START_TIME_COLUMN);
+                sb.append(",");
+                sb.append(END_TIME_COLUMN);
+                sb.append(",");
+                sb.append(EXIT_STATUS_COLUMN);
+
+                sb.append(" FROM ");
+                sb.append(tables[t]);
+                sb.append(" WHERE ");
+                sb.append(JOB_ID_COLUMN);
+                sb.append(" IN (");
+                for (int i = 0; i < chunk.size(); i++) {
+                    sb.append(i == 0 ? "?" : ",?");
+                }
+                sb.append(")");
             }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
+            Connection conn = acquireConnection();
+
+            try {
+                PreparedStatement stmt = conn.prepareStatement(sb.toString());
+                stmt.setQueryTimeout(60);
+
+                int index = 1;
+                for (int t = 0; t < tables.length; t++) {
+                    for (String jobId : chunk) {
+                        stmt.setString(index++, jobId);
+                    }
+                }
+
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    GridJobInfo gji = ret.get(rs.getString(JOB_ID_COLUMN));
+
+                    if (gji != null) {
+                        gji.setState(GridJobInfo.STATE_FINISHED);
+                        gji.setStartTime(rs.getLong(START_TIME_COLUMN));
+                        gji.setFinishTime(rs.getLong(END_TIME_COLUMN));
+                        gji.setExitStatus(rs.getInt(EXIT_STATUS_COLUMN));
+                    }
+                }
+
+                rs.close();
+                stmt.close();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            } finally {
+                releaseConnection(conn);
+            }
         }
 
-        return gji;
+        return ret;
     }
 
-    private int cleanup(long cutOffTime) {
-        StringBuilder sb = new StringBuilder("DELETE FROM ");
-        sb.append(FINISHED_JOBS_TABLE);
-        sb.append(" WHERE ");
-        sb.append(END_TIME_COLUMN);
-        sb.append("<");
-        sb.append(cutOffTime);
+    /**
+     * Removes jobs which ended before the cutoff time. The database drops
+     * whole hourly segments, the index removes the jobs one by one.
+     */
+    private int cleanup(FinishedJobWriter jobWriter, long cutOffTime) {
+        if (index != null) {
+            int deleted = index.removeOlderThan(cutOffTime);
+
+            if (deleted > 0) {
+                System.out.println("SGE Accounting: Sweeper deleted " + deleted + " jobs from index.");
+            }
+            return deleted;
+        }
 
-        int deleted = executeUpdate(sb.toString());
+        int expired = jobWriter.expire(cutOffTime);
 
-        if (deleted > 0) {
-            System.out.println("SGE Accounting: Sweeper deleted " + deleted + " jobs from database.");
+        if (expired > 0) {
+            System.out.println("SGE Accounting: Sweeper dropped " + expired + " hourly segments from database.");
         }
-        return deleted;
-    }
 
-    private void persist(FinishedJobRecord r) {
-        StringBuilder sb = new StringBuilder("SELECT ");
-        sb.append(JOB_ID_COLUMN);
-        sb.append(" FROM ");
-        sb.append(FINISHED_JOBS_TABLE);
-        sb.append(" WHERE ");
-        sb.append(JOB_ID_COLUMN);
-        sb.append("='");
-        sb.append(r.job_number);
+        JobIdBloomFilter filter = jobFilter;
+
+        // The filter still has the expired jobs, or it is overfull
+        if (filter != null && (expired > 0 || filter.getInsertions() > filter.getExpectedInsertions())) {
+            rebuildJobFilter();
+        }
+
+        return expired;
+    }
 
-        if (r.task_number > 0) {
-            sb.append(".");
-            sb.append(r.task_number);
+    /**
+     * Builds a new negative cache filter from the jobs in the database and
+     * replaces the current one. Runs on this thread while nothing is
+     * buffered, so no job which is being stored can be missed. The off-heap
+     * index answers lookups faster than a filter would and does not use one.
+     */
+    private void rebuildJobFilter() {
+        if (negativeCacheFpp <= 0 || index != null || segments == null) {
+            return;
         }
-        sb.append("'");
+
+        long[] keys = new long[1024];
+        int n = 0;
+        Connection conn = acquireConnection();
 
         try {
-            ResultSet rs = executeQuery(sb.toString());
-            if (rs != null && rs.next()) {;
-                // already persisted
-                return;
+            Statement stmt = conn.createStatement();
+
+            for (String table : segments.getLiveTables()) {
+                ResultSet rs = stmt.executeQuery("SELECT " + JOB_ID_COLUMN + " FROM " + table);
+
+                while (rs.next()) {
+                    if (n == keys.length) {
+                        keys = Arrays.copyOf(keys, n * 2);
+                    }
+                    keys[n++] = FinishedJobIndex.toKey(rs.getString(1));
+                }
+                rs.close();
             }
 
-        } catch (Exception ex) {
+            stmt.close();
+        } catch (SQLException ex) {
+            // Without a complete filter every lookup has to go to the database
+            jobFilter = null;
             ex.printStackTrace();
+            return;
+        } finally {
+            releaseConnection(conn);
         }
 
-        sb = new StringBuilder("INSERT INTO ");
+        JobIdBloomFilter filter = new JobIdBloomFilter(Math.max(2L * n, MIN_FILTER_SIZE), negativeCacheFpp);
 
-        sb.append(FINISHED_JOBS_TABLE);
-        sb.append(" (");
-        sb.append(JOB_ID_COLUMN);
-        sb.append(",");
-        sb.append(START_TIME_COLUMN);
-        sb.append(",");
-        sb.append(END_TIME_COLUMN);
-        sb.append(",");
-        sb.append(EXIT_STATUS_COLUMN);
-        sb.append(") VALUES (?,?,?,?)");
+        for (int i = 0; i < n; i++) {
+            filter.add(keys[i] >>> 32, (int) keys[i]);
+        }
 
+        jobFilter = filter;
 
+        System.out.println("SGE Accounting: Negative cache: " + filter);
+    }
 
-        Connection conn = acquireConnection();
+    /**
+     * Returns the filter which rules out lookups of jobs which are not
+     * stored, or null if there is none.
+     */
+    public JobIdBloomFilter getNegativeCache() {
+        return jobFilter;
+    }
 
-        try {
-            PreparedStatement stmt = conn.prepareStatement(sb.toString());
+    /**
+     * Stores the record in the off-heap index if one is used, otherwise
+     * hands it to the database writer.
+     */
+    private void store(FinishedJobWriter jobWriter, FinishedJobRecord r) {
+        JobIdBloomFilter filter = jobFilter;
+
+        if (filter != null) {
+            filter.add(r.job_number_value, r.task_number);
+        }
 
-            String jobId = r.job_number;
+        if (index != null) {
+            index.put(r);
+        } else {
+            jobWriter.add(r);
+        }
+    }
+
+    /**
+     * Writes the buffered records. Returns false if some were dropped, the
+     * sync position must then stay where it is so they are read again.
+     */
+    private boolean flush(FinishedJobWriter jobWriter) {
+        return jobWriter == null || jobWriter.flush();
+    }
 
-            if (r.task_number > 0) {
-                jobId += "." + r.task_number;
+    /**
+     * Returns the writer which stores parsed records, opening its dedicated
+     * connection on first use. Returns null if the connection fails.
+     */
+    private FinishedJobWriter getWriter() {
+        if (writer == null && segments != null) {
+            try {
+                Connection conn = DriverManager.getConnection(databaseURL, dbUsername, dbPassword);
+                writer = new FinishedJobWriter(conn, segments, FinishedJobWriter.DEFAULT_BATCH_SIZE,
+                        FinishedJobWriter.DEFAULT_MAX_LATENCY, retentionWindow);
+            } catch (SQLException ex) {
+                ex.printStackTrace();
             }
+        }
+        return writer;
+    }
 
-            long startTime = r.start_time;
-            long endTime = r.end_time;
+    /**
+     * Selects how the accounting file is read: "reader" (default) reads it
+     * line by line through a stream, "mapped" decodes records from memory
+     * mapped windows of the file.
+     */
+    public void setParserMode(String mode) {
+        useMappedParser = mode != null && mode.trim().toLowerCase().equals("mapped");
+    }
+
+    /**
+     * Selects where finished jobs are stored: "hsqldb" (default) keeps them
+     * in the FINISHED_JOBS table, "offheap" keeps them in a memory mapped
+     * hash table in accountingDB.idx, which answers lookups without SQL. Must
+     * be called before the thread is started.
+     */
+    public void setStoreMode(String mode) {
+        if (mode != null && mode.trim().toLowerCase().equals("offheap")) {
+            try {
+                index = new FinishedJobIndex(new File("accountingDB.idx").getAbsoluteFile());
+                System.out.println("SGE Accounting: Using off-heap index with " + index.size() + " jobs.");
+            } catch (IOException ex) {
+                System.err.println("SGE Accounting: Unable to open off-heap index, using the database.");
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Selects how new records are noticed: "poll" (default) checks the file
+     * every two seconds, "watch" waits for file system events and only polls
+     * every 30 seconds in case the file system does not deliver them (for
+     * example NFS with writes from other hosts). Must be called before the
+     * thread is started.
+     */
+    public void setTailMode(String mode) {
+        useWatchService = mode != null && mode.trim().toLowerCase().equals("watch");
+    }
+
+    /**
+     * Sets how many hours of history are loaded from the rotated accounting
+     * files when the plugin starts without any. Backfill is off if the value
+     * is missing or not positive. Must be called before the thread is
+     * started.
+     */
+    public void setBackfillWindow(String hours) {
+        backfillWindow = 0;
+
+        if (hours != null) {
+            try {
+                backfillWindow = Math.max(0, Long.parseLong(hours.trim())) * 1000 * 60 * 60;
+            } catch (NumberFormatException ex) {
+                System.err.println("SGE Accounting: Invalid backfill window " + hours);
+            }
+        }
+    }
 
-            if (startTime == endTime) {
-                Double utime = Double.parseDouble(r.ru_utime);
+    /**
+     * Sets for how many hours finished jobs are kept, 24 by default. Jobs
+     * are dropped in whole hours, so a job may stay up to an hour longer.
+     * Must be called before the thread is started.
+     */
+    public void setRetentionWindow(String hours) {
+        retentionWindow = DEFAULT_RETENTION_WINDOW;
+
+        if (hours != null) {
+            try {
+                long h = Long.parseLong(hours.trim());
 
-                if (utime != null && utime > 0) {
-                    endTime += utime * 1000;
+                if (h > 0) {
+                    retentionWindow = h * 1000 * 60 * 60;
                 }
+            } catch (NumberFormatException ex) {
+                System.err.println("SGE Accounting: Invalid retention window " + hours);
             }
+        }
+    }
 
-            stmt.setString(1, jobId);
-            stmt.setLong(2, r.start_time);
-            stmt.setLong(3, r.end_time);
-            stmt.setInt(4, r.exit_status);
+    /**
+     * Enables the negative cache for finished job lookups with the given
+     * false positive probability, for example "0.01". Lookups of jobs which
+     * are not stored are answered without a query, except for that fraction.
+     * Must be called before the thread is started.
+     */
+    public void setNegativeCacheFpp(String fpp) {
+        negativeCacheFpp = 0;
 
-            stmt.execute();
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        } finally {
-            releaseConnection(conn);
+        if (fpp != null) {
+            try {
+                double p = Double.parseDouble(fpp.trim());
+
+                if (p > 0 && p < 1) {
+                    negativeCacheFpp = p;
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("SGE Accounting: Invalid negative cache false positive rate " + fpp);
+            }
         }
     }
 
     public void shutdown() {
         shutdown = true;
+
+        // wake up the tailer if it is waiting for events
+        AccountingFileWatcher w = watcher;
+
+        if (w != null) {
+            w.close();
+        }
     }
 }